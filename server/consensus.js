@@ -0,0 +1,263 @@
+// Merges reports from several players into one status per world. Kept apart from the
+// HTTP routes so the rules can be tested on their own.
+
+// Reports carry the server time the transition was observed at. Reports too old or too
+// far in the future to trust are dropped rather than restamped, a late retry must not pass
+// for a fresh transition. Older clients send no tick and stamp reports with their own send
+// time, their reports are taken as observed on arrival.
+const MAX_REPORT_AGE_MS = 2 * 60 * 1000;
+const MAX_CLOCK_SKEW_MS = 5 * 1000;
+
+// Returns the observation time, or null if the report should be dropped
+function observedAt(timestamp, now) {
+    if (timestamp === undefined || timestamp === null) {
+        return now;
+    }
+    if (typeof timestamp !== 'number' || timestamp < now - MAX_REPORT_AGE_MS || timestamp > now + MAX_CLOCK_SKEW_MS) {
+        return null;
+    }
+    return Math.min(timestamp, now);
+}
+
+// Several players usually watch the same world. Their reports of one transition are
+// merged: the transition time is the median of up to CONSENSUS_MAX_REPORTERS distinct
+// reporters, so one bad clock cannot move it, and a report further than
+// CONSENSUS_WINDOW_MS from the median is an outlier. A flip the predicted cycle says is
+// too early, or one reported with low confidence while others are watching the world, is
+// held until a second reporter agrees.
+// Every step touches a bounded list, so a report costs O(1).
+const CONSENSUS_MAX_REPORTERS = 7;
+const CONSENSUS_WINDOW_MS = 10 * 1000;
+const MIN_CONFIDENCE = 0.5;
+const DEFAULT_GAP_MS = 83 * 1000;
+const MIN_GAP_MS = 40 * 1000;
+const MAX_GAP_MS = 150 * 1000;
+const MIN_DURATION_MS = 5 * 1000;
+const GAP_WEIGHT = 0.2;
+// A held flip nobody has contradicted by then is accepted, so a world watched by a single
+// player cannot stay on the old state
+const PENDING_TIMEOUT_MS = 15 * 1000;
+
+function newWorldState() {
+    return {
+        // Reports of the world's current transition
+        times: [],
+        reporters: [],
+        // A flip waiting for a second reporter or the timeout
+        pending: null,
+        gapMean: DEFAULT_GAP_MS,
+        gapVariance: 16 * 1000 * 1000,
+        gapSamples: 0
+    };
+}
+
+function median(times) {
+    const sorted = times.slice().sort((a, b) => a - b);
+    const middle = Math.floor(sorted.length / 2);
+    return sorted.length % 2 ? sorted[middle] : Math.round((sorted[middle - 1] + sorted[middle]) / 2);
+}
+
+// Adds a report to a cluster unless the reporter is already in it, it is full, or the
+// time is an outlier. Returns whether it was added.
+function addToCluster(cluster, timestamp, reporter) {
+    if (cluster.reporters.includes(reporter) || cluster.times.length >= CONSENSUS_MAX_REPORTERS) {
+        return false;
+    }
+    if (cluster.times.length > 0 && Math.abs(timestamp - median(cluster.times)) > CONSENSUS_WINDOW_MS) {
+        return false;
+    }
+    cluster.times.push(timestamp);
+    cluster.reporters.push(reporter);
+    return true;
+}
+
+// Whether a flip at this time fits the world's predicted cycle
+function plausibleFlip(state, existingData, distracted, timestamp) {
+    if (!existingData) {
+        return true;
+    }
+    if (distracted) {
+        if (!existingData.distractionEndTime) {
+            return true;
+        }
+        // Trust the learned gap once there are a few samples, until then only rule out the impossible
+        const tolerance = Math.max(15 * 1000, 3 * Math.sqrt(state.gapVariance));
+        const minimum = state.gapSamples >= 3 ? Math.max(MIN_GAP_MS, state.gapMean - tolerance) : MIN_GAP_MS;
+        return timestamp - existingData.distractionEndTime >= minimum;
+    }
+    return !existingData.distracted || timestamp - existingData.distractionStartTime >= MIN_DURATION_MS;
+}
+
+function learnGap(state, gap) {
+    if (gap < MIN_GAP_MS || gap > MAX_GAP_MS) {
+        return;
+    }
+    const deviation = gap - state.gapMean;
+    const weight = Math.max(GAP_WEIGHT, 1 / (state.gapSamples + 2));
+    state.gapMean += weight * deviation;
+    state.gapVariance = (1 - weight) * (state.gapVariance + weight * deviation * deviation);
+    state.gapSamples++;
+}
+
+// The consensus over a world store. `store.get(world)` returns the current status and
+// `store.put(world, distracted, start, end, lastUpdateTime, reporter)` stores a new one
+// and returns it.
+function createConsensus(store, log = console.log) {
+    const worlds = new Map();
+    let droppedReports = 0;
+
+    function stateFor(world) {
+        let state = worlds.get(world);
+        if (!state) {
+            state = newWorldState();
+            worlds.set(world, state);
+        }
+        return state;
+    }
+
+    // Applies one report, returns the new world status or null if it changed nothing
+    function applyReport(report, now = Date.now()) {
+        const { world, distracted } = report;
+        const reporter = report.playerName || 'Unknown';
+        const confidence = typeof report.confidence === 'number' ? report.confidence : 1;
+        const existingData = store.get(world);
+        const timestamp = typeof report.tick === 'number' ? observedAt(report.timestamp, now) : now;
+        if (timestamp === null) {
+            droppedReports++;
+            log(`World ${world}: dropped report from ${reporter} observed outside the accepted window`);
+            return null;
+        }
+        const state = stateFor(world);
+
+        if (existingData && existingData.distracted === distracted) {
+            // Another view of the current transition, or of a world with no transition yet
+            const current = distracted ? existingData.distractionStartTime : existingData.distractionEndTime;
+            let start = existingData.distractionStartTime;
+            let end = existingData.distractionEndTime;
+            const pending = state.pending;
+            if (pending && timestamp > median(pending.times)) {
+                // Seen still in the current state after the held flip, by its reporter or anyone else
+                state.pending = null;
+                log(`World ${world}: dropped held ${pending.distracted ? 'start' : 'end'}, ${reporter} reports otherwise`);
+            }
+
+            // Low confidence times are known to be rough, they only confirm the state
+            if (current && confidence >= MIN_CONFIDENCE && addToCluster(state, timestamp, reporter)) {
+                const merged = median(state.times);
+                if (distracted) {
+                    start = merged;
+                } else {
+                    end = merged;
+                }
+            }
+
+            const lastUpdateTime = Math.max(existingData.lastUpdateTime, timestamp);
+            if (start === existingData.distractionStartTime && end === existingData.distractionEndTime
+                && lastUpdateTime === existingData.lastUpdateTime) {
+                return null;
+            }
+            return store.put(world, distracted, start, end, lastUpdateTime, existingData.reportedBy);
+        }
+
+        // Retried reports keep their observation time, ignore a flip from before the current transition
+        if (existingData && timestamp < Math.max(existingData.distractionStartTime, existingData.distractionEndTime)) {
+            return null;
+        }
+
+        // On a world nobody else reports, a low confidence report is still the best there is
+        const othersWatching = existingData && existingData.reportedBy !== reporter
+            && now - existingData.lastUpdateTime < DEFAULT_GAP_MS;
+        const doubtful = confidence < MIN_CONFIDENCE && othersWatching;
+
+        let times = [timestamp];
+        let reporters = [reporter];
+        if (doubtful || !plausibleFlip(state, existingData, distracted, timestamp)) {
+            const pending = state.pending;
+            if (!pending || pending.distracted !== distracted) {
+                state.pending = { distracted: distracted, times: times, reporters: reporters, confidence: confidence, heldSince: now };
+                log(`World ${world}: held ${distracted ? 'start' : 'end'} from ${reporter} until another reporter agrees`);
+                return null;
+            }
+            if (!addToCluster(pending, timestamp, reporter)) {
+                return null;
+            }
+            times = pending.times;
+            reporters = pending.reporters;
+        }
+
+        return commitFlip(world, state, existingData, distracted, times, reporters, confidence, now);
+    }
+
+    // Makes a flip the world's current transition
+    function commitFlip(world, state, existingData, distracted, times, reporters, confidence, now) {
+        state.times = times;
+        state.reporters = reporters;
+        state.pending = null;
+        const transitionTime = median(times);
+
+        let distractionStartTime = 0;
+        let distractionEndTime = existingData?.distractionEndTime || 0;
+        if (distracted) {
+            distractionStartTime = transitionTime;
+            // Only learn from starts someone saw happen
+            if (distractionEndTime && (confidence >= MIN_CONFIDENCE || times.length > 1)) {
+                learnGap(state, distractionStartTime - distractionEndTime);
+            }
+        } else if (existingData?.distracted) {
+            // Was distracted, now ending - record end time
+            distractionEndTime = transitionTime;
+        }
+
+        const newData = store.put(world, distracted, distractionStartTime, distractionEndTime,
+            Math.max(existingData?.lastUpdateTime || 0, ...times), reporters[reporters.length - 1]);
+
+        const secondsSinceEnd = distractionEndTime ? Math.floor((now - distractionEndTime) / 1000) : -1;
+        const timeInfo = distracted ? 'DISTRACTED' : `ended ${secondsSinceEnd}s ago`;
+        log(`World ${world}: ${timeInfo} (reported by ${reporters.join(', ')})`);
+
+        return newData;
+    }
+
+    // Accepts held flips that waited out the timeout, returns the world statuses it changed
+    function settlePending(now = Date.now()) {
+        const changed = [];
+        for (const [world, state] of worlds.entries()) {
+            const pending = state.pending;
+            if (!pending || now - pending.heldSince < PENDING_TIMEOUT_MS) {
+                continue;
+            }
+            const existingData = store.get(world);
+            if (!existingData || existingData.distracted === pending.distracted) {
+                state.pending = null;
+                continue;
+            }
+            log(`World ${world}: accepted held ${pending.distracted ? 'start' : 'end'} after ${PENDING_TIMEOUT_MS / 1000}s`);
+            changed.push(commitFlip(world, state, existingData, pending.distracted, pending.times, pending.reporters,
+                pending.confidence, now));
+        }
+        return changed;
+    }
+
+    return {
+        applyReport: applyReport,
+        settlePending: settlePending,
+        stateFor: stateFor,
+        droppedReports: () => droppedReports
+    };
+}
+
+module.exports = {
+    CONSENSUS_MAX_REPORTERS,
+    CONSENSUS_WINDOW_MS,
+    MIN_CONFIDENCE,
+    MIN_GAP_MS,
+    MIN_DURATION_MS,
+    PENDING_TIMEOUT_MS,
+    newWorldState,
+    observedAt,
+    median,
+    addToCluster,
+    plausibleFlip,
+    learnGap,
+    createConsensus
+};
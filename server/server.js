@@ -1,32 +1,273 @@
 const express = require('express');
 const cors = require('cors');
+const zlib = require('zlib');
+const { createConsensus } = require('./consensus');
 
 const app = express();
 const PORT = process.env.PORT || 3000;
 
-app.use(cors());
+// The citizen feed sets its own sequence-based ETag
+app.set('etag', false);
+
+app.use(cors({ exposedHeaders: ['ETag', 'X-Server-Time'] }));
 app.use(express.json());
 
+// Clients estimate their clock offset from this, so every reported time is on the server clock
+app.use((req, res, next) => {
+    res.set('X-Server-Time', String(Date.now()));
+    next();
+});
+
 // In-memory storage for citizen status across worlds
 // In production, you'd want to use Redis or a database
 const citizenData = new Map();
 
+// Change feed: every mutation bumps the sequence number. Worlds carry the
+// sequence of their last change, removed worlds leave a tombstone so clients
+// polling with ?since=<seq> can drop them.
+// The sequence starts at this process's boot epoch, the boot time in ms times
+// CHANGES_PER_MS, so cursors, ETags and event ids of an earlier process are below it
+// and never mistaken for a position in this one's feed.
+const CHANGES_PER_MS = 1000;
+const BOOT_EPOCH = Date.now() * CHANGES_PER_MS;
+let sequence = BOOT_EPOCH;
+const tombstones = new Map();
+const TOMBSTONE_RETENTION_MS = 10 * 60 * 1000; // 10 minutes
+let compactedThrough = 0; // cursors at or below this may have missed a removal
+
+function removeWorld(world) {
+    if (!citizenData.delete(world)) {
+        return false;
+    }
+    tombstones.set(world, { seq: ++sequence, removedAt: Date.now() });
+    publish({ cursor: sequence, full: false, changed: [], removed: [world] });
+    return true;
+}
+
+// Builds the change feed response for a client at the given cursor
+function buildDelta(since) {
+    // A cursor from another process is outside this one's range, it gets everything
+    const full = isNaN(since) || since < BOOT_EPOCH || since < compactedThrough || since > sequence;
+    const changed = [];
+    const removed = [];
+
+    for (const status of citizenData.values()) {
+        if (full || status.seq > since) {
+            changed.push(status);
+        }
+    }
+
+    if (!full) {
+        for (const [world, tombstone] of tombstones.entries()) {
+            if (tombstone.seq > since) {
+                removed.push(world);
+            }
+        }
+    }
+
+    return { cursor: sequence, full: full, changed: changed, removed: removed };
+}
+
+// Compact binary encoding of a delta, negotiated with Accept: application/x-citizen-cycle
+//   'C', version, flags (1 = full, 2 = has cursor), [cursor], baseTime,
+//   reporters: count, (length, utf8)...
+//   changed: count, (world - 300 zigzag, flags (1 = distracted, 2 = start, 4 = end),
+//            [start - base], [end - base], lastUpdate - base, reporter index)...
+//   removed: count, (world - 300 zigzag)...
+// All integers are unsigned LEB128 varints, timestamps are relative to baseTime.
+const BINARY_TYPE = 'application/x-citizen-cycle';
+const WORLD_BASE = 300;
+
+function writeVarint(bytes, value) {
+    let n = Math.max(0, Math.floor(value));
+    while (n >= 128) {
+        bytes.push((n % 128) | 128);
+        n = Math.floor(n / 128);
+    }
+    bytes.push(n);
+}
+
+function writeWorld(bytes, world) {
+    const offset = world - WORLD_BASE;
+    writeVarint(bytes, offset >= 0 ? offset * 2 : -offset * 2 - 1);
+}
+
+function encodeBinary(delta) {
+    const bytes = [0x43, 1];
+    const hasCursor = delta.cursor !== undefined && delta.cursor !== null;
+    bytes.push((delta.full ? 1 : 0) | (hasCursor ? 2 : 0));
+    if (hasCursor) {
+        writeVarint(bytes, delta.cursor);
+    }
+
+    let baseTime = Infinity;
+    for (const status of delta.changed) {
+        for (const time of [status.distractionStartTime, status.distractionEndTime, status.lastUpdateTime]) {
+            if (time > 0 && time < baseTime) {
+                baseTime = time;
+            }
+        }
+    }
+    if (baseTime === Infinity) {
+        baseTime = Date.now();
+    }
+    writeVarint(bytes, baseTime);
+
+    const reporters = new Map();
+    for (const status of delta.changed) {
+        if (!reporters.has(status.reportedBy)) {
+            reporters.set(status.reportedBy, reporters.size);
+        }
+    }
+    writeVarint(bytes, reporters.size);
+    for (const name of reporters.keys()) {
+        const utf8 = Buffer.from(name || '', 'utf8');
+        writeVarint(bytes, utf8.length);
+        for (const b of utf8) {
+            bytes.push(b);
+        }
+    }
+
+    writeVarint(bytes, delta.changed.length);
+    for (const status of delta.changed) {
+        writeWorld(bytes, status.world);
+        const hasStart = status.distractionStartTime > 0;
+        const hasEnd = status.distractionEndTime > 0;
+        bytes.push((status.distracted ? 1 : 0) | (hasStart ? 2 : 0) | (hasEnd ? 4 : 0));
+        if (hasStart) {
+            writeVarint(bytes, status.distractionStartTime - baseTime);
+        }
+        if (hasEnd) {
+            writeVarint(bytes, status.distractionEndTime - baseTime);
+        }
+        writeVarint(bytes, (status.lastUpdateTime || baseTime) - baseTime);
+        writeVarint(bytes, reporters.get(status.reportedBy));
+    }
+
+    writeVarint(bytes, delta.removed.length);
+    for (const world of delta.removed) {
+        writeWorld(bytes, world);
+    }
+
+    return Buffer.from(bytes);
+}
+
+// Responses below this size are sent uncompressed, the headers would eat the savings
+const COMPRESSION_THRESHOLD_BYTES = 1024;
+
+// Sends a body with brotli or gzip when the client accepts it and it is large enough.
+// Request bodies sent with Content-Encoding: gzip are inflated by express.json().
+function sendCompressed(req, res, body, type) {
+    res.vary('Accept-Encoding');
+    res.type(type);
+
+    if (body.length >= COMPRESSION_THRESHOLD_BYTES) {
+        const encoding = req.acceptsEncodings(['br', 'gzip', 'identity']);
+        if (encoding === 'br') {
+            res.set('Content-Encoding', 'br');
+            body = zlib.brotliCompressSync(body, {
+                params: { [zlib.constants.BROTLI_PARAM_QUALITY]: 5 }
+            });
+        } else if (encoding === 'gzip') {
+            res.set('Content-Encoding', 'gzip');
+            body = zlib.gzipSync(body);
+        }
+    }
+
+    res.send(body);
+}
+
+// Sends a delta as JSON, or binary when the client prefers it. Legacy clients get the plain array.
+function sendFeed(req, res, delta, legacy) {
+    res.vary('Accept');
+    if (req.accepts(['application/json', BINARY_TYPE]) === BINARY_TYPE) {
+        return sendCompressed(req, res, encodeBinary(delta), BINARY_TYPE);
+    }
+    sendCompressed(req, res, Buffer.from(JSON.stringify(legacy ? delta.changed : delta)), 'application/json');
+}
+
+// Server-Sent Events subscribers, each event id is the feed cursor so a
+// reconnecting client resumes with Last-Event-ID
+const subscribers = new Set();
+const HEARTBEAT_INTERVAL_MS = 15000;
+
+function writeEvent(res, delta) {
+    res.write(`id: ${delta.cursor}\nevent: delta\ndata: ${JSON.stringify(delta)}\n\n`);
+}
+
+function publish(delta) {
+    for (const res of subscribers) {
+        writeEvent(res, delta);
+    }
+}
+
+setInterval(() => {
+    for (const res of subscribers) {
+        res.write(': heartbeat\n\n');
+    }
+}, HEARTBEAT_INTERVAL_MS);
+
+function feedEtag() {
+    return `"${sequence}"`;
+}
+
 // Cleanup stale data every 30 seconds
 const STALE_THRESHOLD_MS = 60000; // 60 seconds
 setInterval(() => {
     const now = Date.now();
     for (const [world, data] of citizenData.entries()) {
         if (now - data.lastUpdateTime > STALE_THRESHOLD_MS) {
-            citizenData.delete(world);
+            removeWorld(world);
             console.log(`Removed stale data for world ${world}`);
         }
     }
+    for (const [world, tombstone] of tombstones.entries()) {
+        if (now - tombstone.removedAt > TOMBSTONE_RETENTION_MS) {
+            tombstones.delete(world);
+            compactedThrough = Math.max(compactedThrough, tombstone.seq);
+        }
+    }
 }, 30000);
 
-// GET - Retrieve all citizen statuses
+// GET - Retrieve all citizen statuses, or only the changes since a cursor
+//   GET /api/citizens            -> [status, ...] (legacy full array)
+//   GET /api/citizens?since=<n>  -> { cursor, full, changed: [status, ...], removed: [world, ...] }
 app.get('/api/citizens', (req, res) => {
-    const statuses = Array.from(citizenData.values());
-    res.json(statuses);
+    const etag = feedEtag();
+    res.set('ETag', etag);
+    res.set('Cache-Control', 'no-cache');
+
+    if (req.get('If-None-Match') === etag) {
+        return res.status(304).end();
+    }
+
+    if (req.query.since === undefined) {
+        const snapshot = { cursor: null, full: true, changed: Array.from(citizenData.values()), removed: [] };
+        return sendFeed(req, res, snapshot, true);
+    }
+
+    sendFeed(req, res, buildDelta(parseInt(req.query.since)), false);
+});
+
+// GET - Subscribe to status changes as Server-Sent Events
+app.get('/api/citizens/stream', (req, res) => {
+    res.set({
+        'Content-Type': 'text/event-stream',
+        'Cache-Control': 'no-cache',
+        'Connection': 'keep-alive',
+        'X-Accel-Buffering': 'no'
+    });
+    res.flushHeaders();
+
+    // Catch up from the client's last event id, or send everything on first connect
+    const lastEventId = parseInt(req.get('Last-Event-ID'));
+    const catchUp = buildDelta(lastEventId);
+    if (catchUp.full || catchUp.changed.length > 0 || catchUp.removed.length > 0) {
+        writeEvent(res, catchUp);
+    }
+
+    subscribers.add(res);
+    req.on('close', () => subscribers.delete(res));
 });
 
 // GET - Retrieve status for a specific world
@@ -41,56 +282,66 @@ app.get('/api/citizens/:world', (req, res) => {
     }
 });
 
-// POST - Update citizen status for a world
+function storeStatus(world, distracted, start, end, lastUpdateTime, reporter) {
+    const newData = {
+        world: world,
+        distracted: distracted,
+        distractionStartTime: start,
+        distractionEndTime: end,
+        lastUpdateTime: lastUpdateTime,
+        reportedBy: reporter,
+        seq: ++sequence
+    };
+    citizenData.set(world, newData);
+    tombstones.delete(world);
+    return newData;
+}
+
+const consensus = createConsensus({ get: world => citizenData.get(world), put: storeStatus });
+
+// Held flips are settled on a timer, the reporter of a lone flip may not report again
+setInterval(() => {
+    const changed = consensus.settlePending();
+    if (changed.length > 0) {
+        publish({ cursor: sequence, full: false, changed: changed, removed: [] });
+    }
+}, 5000);
+
+// POST - Update citizen status for a world, or a batch of worlds as an array
 app.post('/api/citizens', (req, res) => {
-    const { playerName, world, distracted, timestamp } = req.body;
+    const batch = Array.isArray(req.body);
+    const reports = batch ? req.body : [req.body];
     
-    if (world === undefined || distracted === undefined) {
-        return res.status(400).json({ error: 'Missing required fields: world, distracted' });
+    for (const report of reports) {
+        if (!report || report.world === undefined || report.distracted === undefined) {
+            return res.status(400).json({ error: 'Missing required fields: world, distracted' });
+        }
     }
     
-    const existingData = citizenData.get(world);
-    const now = Date.now();
-    
-    // Track distraction timing for cycle prediction
-    let distractionStartTime = 0;
-    let distractionEndTime = existingData?.distractionEndTime || 0;
-    
-    if (distracted) {
-        // Distraction starting
-        distractionStartTime = existingData?.distracted ? existingData.distractionStartTime : now;
-        // Keep previous end time for reference
-    } else {
-        // Distraction ending
-        if (existingData?.distracted) {
-            // Was distracted, now ending - record end time
-            distractionEndTime = now;
+    // Oldest observation first so the latest state wins
+    const ordered = reports.slice().sort((a, b) => (a.timestamp || 0) - (b.timestamp || 0));
+    const changed = [];
+    for (const report of ordered) {
+        const newData = consensus.applyReport(report);
+        if (newData) {
+            changed.push(newData);
         }
-        // If wasn't distracted before, keep existing end time
     }
     
-    const newData = {
-        world: world,
-        distracted: distracted,
-        distractionStartTime: distractionStartTime,
-        distractionEndTime: distractionEndTime,
-        lastUpdateTime: timestamp || now,
-        reportedBy: playerName || 'Unknown'
-    };
-    
-    citizenData.set(world, newData);
-    
-    const secondsSinceEnd = distractionEndTime ? Math.floor((now - distractionEndTime) / 1000) : -1;
-    const timeInfo = distracted ? 'DISTRACTED' : `ended ${secondsSinceEnd}s ago`;
-    console.log(`World ${world}: ${timeInfo} (reported by ${playerName})`);
+    if (changed.length > 0) {
+        publish({ cursor: sequence, full: false, changed: changed, removed: [] });
+    }
     
-    res.json({ success: true, data: newData });
+    if (batch) {
+        return res.json({ success: true, accepted: changed.length });
+    }
+    res.json({ success: true, data: changed[0] || citizenData.get(req.body.world) });
 });
 
 // DELETE - Remove status for a world (optional endpoint)
 app.delete('/api/citizens/:world', (req, res) => {
     const world = parseInt(req.params.world);
-    const deleted = citizenData.delete(world);
+    const deleted = removeWorld(world);
     
     if (deleted) {
         res.json({ success: true, message: `Removed data for world ${world}` });
@@ -104,6 +355,8 @@ app.get('/health', (req, res) => {
     res.json({ 
         status: 'ok', 
         worldsTracked: citizenData.size,
+        subscribers: subscribers.size,
+        droppedReports: consensus.droppedReports(),
         uptime: process.uptime()
     });
 });
@@ -123,7 +376,8 @@ app.get('/api/stats', (req, res) => {
 app.listen(PORT, () => {
     console.log(`Citizen Cycle server running on port ${PORT}`);
     console.log(`API endpoints:`);
-    console.log(`  GET  /api/citizens     - Get all citizen statuses`);
+    console.log(`  GET  /api/citizens     - Get all citizen statuses (?since=<cursor> for changes only)`);
+    console.log(`  GET  /api/citizens/stream - Subscribe to status changes (SSE)`);
     console.log(`  GET  /api/citizens/:id - Get status for specific world`);
     console.log(`  POST /api/citizens     - Update citizen status`);
     console.log(`  GET  /api/stats        - Get statistics`);
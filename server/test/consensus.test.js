@@ -0,0 +1,225 @@
+const test = require('node:test');
+const assert = require('node:assert');
+const {
+    CONSENSUS_MAX_REPORTERS,
+    MIN_GAP_MS,
+    PENDING_TIMEOUT_MS,
+    newWorldState,
+    observedAt,
+    median,
+    addToCluster,
+    plausibleFlip,
+    learnGap,
+    createConsensus
+} = require('../consensus');
+
+const NOW = 1_700_000_000_000;
+const WORLD = 301;
+
+function memoryStore() {
+    const statuses = new Map();
+    return {
+        statuses: statuses,
+        get: world => statuses.get(world),
+        put: (world, distracted, start, end, lastUpdateTime, reporter) => {
+            const status = {
+                world: world,
+                distracted: distracted,
+                distractionStartTime: start,
+                distractionEndTime: end,
+                lastUpdateTime: lastUpdateTime,
+                reportedBy: reporter
+            };
+            statuses.set(world, status);
+            return status;
+        }
+    };
+}
+
+function setup() {
+    const store = memoryStore();
+    const consensus = createConsensus(store, () => {});
+    const report = (playerName, distracted, timestamp, extra = {}) =>
+        consensus.applyReport({ playerName, world: WORLD, distracted, timestamp, tick: 1, ...extra }, NOW);
+    return { store, consensus, report, status: () => store.get(WORLD) };
+}
+
+test('median of odd and even counts', () => {
+    assert.strictEqual(median([5, 1, 3]), 3);
+    assert.strictEqual(median([4, 1, 3, 2]), 3);
+    assert.strictEqual(median([7]), 7);
+});
+
+test('cluster takes each reporter once and rejects outliers', () => {
+    const cluster = { times: [], reporters: [] };
+    assert.ok(addToCluster(cluster, NOW, 'A'));
+    assert.ok(!addToCluster(cluster, NOW + 1000, 'A'));
+    assert.ok(addToCluster(cluster, NOW + 2000, 'B'));
+    assert.ok(!addToCluster(cluster, NOW + 30_000, 'C'));
+    assert.deepStrictEqual(cluster.reporters, ['A', 'B']);
+});
+
+test('cluster is bounded', () => {
+    const cluster = { times: [], reporters: [] };
+    for (let i = 0; i < CONSENSUS_MAX_REPORTERS; i++) {
+        assert.ok(addToCluster(cluster, NOW + i, `P${i}`));
+    }
+    assert.ok(!addToCluster(cluster, NOW, 'late'));
+    assert.strictEqual(cluster.times.length, CONSENSUS_MAX_REPORTERS);
+});
+
+test('flip plausibility follows the learned gap', () => {
+    const state = newWorldState();
+    const ended = { distracted: false, distractionStartTime: 0, distractionEndTime: NOW };
+    assert.ok(plausibleFlip(state, undefined, true, NOW));
+    assert.ok(!plausibleFlip(state, ended, true, NOW + MIN_GAP_MS - 1));
+    // Before a few samples anything past the minimum gap is possible
+    assert.ok(plausibleFlip(state, ended, true, NOW + 45_000));
+
+    for (let i = 0; i < 5; i++) {
+        learnGap(state, 68_000);
+    }
+    assert.ok(!plausibleFlip(state, ended, true, NOW + 45_000));
+    assert.ok(plausibleFlip(state, ended, true, NOW + 66_000));
+
+    const started = { distracted: true, distractionStartTime: NOW, distractionEndTime: 0 };
+    assert.ok(!plausibleFlip(state, started, false, NOW + 2000));
+    assert.ok(plausibleFlip(state, started, false, NOW + 12_000));
+});
+
+test('gaps outside the possible range are not learned', () => {
+    const state = newWorldState();
+    learnGap(state, 10_000);
+    learnGap(state, 400_000);
+    assert.strictEqual(state.gapSamples, 0);
+    learnGap(state, 70_000);
+    assert.strictEqual(state.gapSamples, 1);
+});
+
+test('observation time window', () => {
+    assert.strictEqual(observedAt(undefined, NOW), NOW);
+    assert.strictEqual(observedAt(NOW - 1000, NOW), NOW - 1000);
+    assert.strictEqual(observedAt(NOW + 2000, NOW), NOW);
+    assert.strictEqual(observedAt(NOW - 3 * 60 * 1000, NOW), null);
+    assert.strictEqual(observedAt(NOW + 60 * 1000, NOW), null);
+    assert.strictEqual(observedAt('soon', NOW), null);
+});
+
+test('reports of one transition merge to their median', () => {
+    const { report, status } = setup();
+    report('A', true, NOW - 9000);
+    report('B', true, NOW - 5000);
+    report('C', true, NOW - 4000);
+    assert.strictEqual(status().distractionStartTime, NOW - 5000);
+    assert.strictEqual(status().reportedBy, 'A');
+
+    // An outlier does not move it, the same reporter again does not count twice
+    assert.strictEqual(report('D', true, NOW - 60_000), null);
+    report('A', true, NOW - 1000);
+    assert.strictEqual(status().distractionStartTime, NOW - 5000);
+});
+
+test('low confidence times only confirm the state', () => {
+    const { report, status } = setup();
+    report('A', true, NOW - 9000);
+    report('B', true, NOW - 1000, { confidence: 0.3 });
+    assert.strictEqual(status().distractionStartTime, NOW - 9000);
+    assert.strictEqual(status().lastUpdateTime, NOW - 1000);
+});
+
+test('a flip too soon is held until a second reporter agrees', () => {
+    const { report, status } = setup();
+    report('A', true, NOW - 100_000);
+    report('A', false, NOW - 85_000);
+    // Only 10s after the end, no real cycle is that short
+    assert.strictEqual(report('A', true, NOW - 75_000), null);
+    assert.strictEqual(status().distracted, false);
+
+    report('B', true, NOW - 74_000);
+    assert.strictEqual(status().distracted, true);
+    assert.strictEqual(status().distractionStartTime, NOW - 74_500);
+});
+
+test('an end right after the start is held', () => {
+    const { report, status } = setup();
+    report('A', true, NOW - 20_000);
+    assert.strictEqual(report('A', false, NOW - 18_000), null);
+    assert.strictEqual(status().distracted, true);
+    report('B', false, NOW - 17_000);
+    assert.strictEqual(status().distracted, false);
+});
+
+test('low confidence flip is held only while others watch the world', () => {
+    const watched = setup();
+    watched.report('A', false, NOW - 80_000);
+    assert.strictEqual(watched.report('B', true, NOW - 1000, { confidence: 0.3 }), null);
+    assert.strictEqual(watched.status().distracted, false);
+
+    const alone = setup();
+    alone.report('A', false, NOW - 80_000);
+    alone.report('A', true, NOW - 1000, { confidence: 0.3 });
+    assert.strictEqual(alone.status().distracted, true);
+});
+
+test('start is learned as a gap from the previous end', () => {
+    const { consensus, report } = setup();
+    report('A', true, NOW - 110_000);
+    report('A', false, NOW - 95_000);
+    report('A', true, NOW - 25_000);
+    assert.strictEqual(consensus.stateFor(WORLD).gapSamples, 1);
+});
+
+test('late reports and flips older than the current transition are dropped', () => {
+    const { consensus, report, status } = setup();
+    assert.strictEqual(report('A', true, NOW - 3 * 60 * 1000), null);
+    assert.strictEqual(consensus.droppedReports(), 1);
+
+    report('A', true, NOW - 10_000);
+    assert.strictEqual(report('B', false, NOW - 20_000), null);
+    assert.strictEqual(status().distracted, true);
+});
+
+test('reports from clients without ticks are observed on arrival', () => {
+    const { consensus, report, status } = setup();
+    // An old client's clock is off by minutes, its send time is not an observation time
+    report('A', true, NOW - 5 * 60 * 1000, { tick: undefined });
+    assert.strictEqual(consensus.droppedReports(), 0);
+    assert.strictEqual(status().distractionStartTime, NOW);
+});
+
+test('a held flip nobody contradicts is accepted after the timeout', () => {
+    const { consensus, report, status } = setup();
+    report('A', true, NOW - 20_000);
+    report('A', false, NOW - 18_000);
+    // The reporter's later reports of the held end are not counted twice
+    assert.strictEqual(report('A', false, NOW - 16_000), null);
+    assert.deepStrictEqual(consensus.settlePending(NOW + PENDING_TIMEOUT_MS - 1), []);
+    assert.strictEqual(status().distracted, true);
+
+    const settled = consensus.settlePending(NOW + PENDING_TIMEOUT_MS);
+    assert.strictEqual(settled.length, 1);
+    assert.strictEqual(status().distracted, false);
+    assert.strictEqual(status().distractionEndTime, NOW - 18_000);
+    assert.strictEqual(consensus.stateFor(WORLD).pending, null);
+
+    // Once the end is plausible the same reporter's report is taken without waiting
+    const again = setup();
+    again.report('A', true, NOW - 20_000);
+    again.report('A', false, NOW - 18_000);
+    again.report('A', false, NOW - 10_000);
+    assert.strictEqual(again.status().distracted, false);
+});
+
+test('a held flip is dropped when the world is reported in its old state after it', () => {
+    const { consensus, report, status } = setup();
+    report('A', false, NOW - 100_000);
+    report('A', true, NOW - 90_000);
+    report('A', false, NOW - 75_000);
+    // A flapping start right after the end, then the same player sees it ended again
+    assert.strictEqual(report('A', true, NOW - 70_000), null);
+    report('A', false, NOW - 65_000);
+    assert.strictEqual(consensus.stateFor(WORLD).pending, null);
+
+    assert.deepStrictEqual(consensus.settlePending(NOW + PENDING_TIMEOUT_MS), []);
+    assert.strictEqual(status().distracted, false);
+});
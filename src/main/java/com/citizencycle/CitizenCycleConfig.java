@@ -4,6 +4,7 @@ import net.runelite.client.config.Config;
 import net.runelite.client.config.ConfigGroup;
 import net.runelite.client.config.ConfigItem;
 import net.runelite.client.config.ConfigSection;
+import net.runelite.client.config.Range;
 
 @ConfigGroup("citizencycle")
 public interface CitizenCycleConfig extends Config
@@ -42,12 +43,43 @@ public interface CitizenCycleConfig extends Config
 		return true;
 	}
 
+	@Range(
+		min = 1,
+		max = 10
+	)
+	@ConfigItem(
+		keyName = "confirmTicks",
+		name = "Confirm Ticks",
+		description = "Ticks a distraction start or end must hold before it is reported, filters out single tick flickers",
+		section = generalSection,
+		position = 1
+	)
+	default int confirmTicks()
+	{
+		return 2;
+	}
+
+	@Range(
+		max = 60
+	)
+	@ConfigItem(
+		keyName = "hopCooldownSeconds",
+		name = "Hop Cooldown (seconds)",
+		description = "Minimum time between two hops of a suggested route, the game refuses hops sooner than its cooldown",
+		section = generalSection,
+		position = 2
+	)
+	default int hopCooldownSeconds()
+	{
+		return 10;
+	}
+
 	// Crowdsourcing Settings
 	@ConfigItem(
 		keyName = "endpoint",
 		position = 0,
 		name = "Endpoint",
-		description = "Endpoint to post and fetch citizen distraction data"
+		description = "Endpoint to post and fetch citizen distraction data. Separate mirrors with commas, the healthiest one is used."
 	)
 	default String getEndpoint()
 	{
@@ -101,6 +133,18 @@ public interface CitizenCycleConfig extends Config
 		return 5;
 	}
 
+	@ConfigItem(
+		keyName = "pushUpdates",
+		name = "Live Updates",
+		description = "Keep a live connection to the server for instant updates, polling only when it is unavailable.",
+		section = crowdsourcingSection,
+		position = 5
+	)
+	default boolean pushUpdates()
+	{
+		return true;
+	}
+
 	// Notification Settings
 	@ConfigItem(
 		keyName = "notifyOnDistraction",
@@ -1,5 +1,6 @@
 package com.citizencycle.events;
 
+import com.citizencycle.objects.CitizenSnapshot;
 import com.citizencycle.objects.CitizenStatus;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
@@ -10,5 +11,10 @@ import java.util.List;
 @AllArgsConstructor
 public class CitizenDataRefreshed
 {
-	private final List<CitizenStatus> citizenStatuses;
+	private final CitizenSnapshot snapshot;
+
+	public List<CitizenStatus> getCitizenStatuses()
+	{
+		return snapshot.getStatusList();
+	}
 }
@@ -0,0 +1,14 @@
+package com.citizencycle.events;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Smoothed time a world hop takes, from leaving one world to being logged in on the next.
+ */
+@Getter
+@AllArgsConstructor
+public class HopDurationMeasured
+{
+	private final long averageMillis;
+}
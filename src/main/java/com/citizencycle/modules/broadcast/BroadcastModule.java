@@ -5,22 +5,30 @@ import com.citizencycle.CitizenCycleConfig;
 import com.citizencycle.PluginModuleContract;
 import com.citizencycle.events.CitizenDataRefreshFailed;
 import com.citizencycle.events.CitizenDataRefreshed;
+import com.citizencycle.events.PluginConfigChanged;
+import com.citizencycle.objects.CitizenSnapshot;
 import com.citizencycle.objects.CitizenStatus;
+import com.citizencycle.objects.WorldStatusTable;
+import com.citizencycle.services.Endpoint;
+import com.citizencycle.services.HedgedCall;
 import com.citizencycle.services.HttpService;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import static net.runelite.http.api.RuneLiteAPI.GSON;
+import com.citizencycle.services.ServerClock;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import net.runelite.client.RuneLite;
+import net.runelite.client.eventbus.Subscribe;
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.Response;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Slf4j
 public class BroadcastModule extends PluginModuleContract
@@ -31,53 +39,251 @@ public class BroadcastModule extends PluginModuleContract
 	@Inject
 	private HttpService httpService;
 
+	@Inject
+	private ScheduledExecutorService executor;
+
+	@Inject
+	private ServerClock serverClock;
+
+	// Replaced wholesale on every applied refresh, never mutated in place
+	private final AtomicReference<CitizenSnapshot> snapshot = new AtomicReference<>(CitizenSnapshot.EMPTY);
+
 	@Getter
-	private final ConcurrentHashMap<Integer, CitizenStatus> worldStatusMap = new ConcurrentHashMap<>();
+	private final CitizenFeedDecoder decoder = new CitizenFeedDecoder(() -> serverClock.now());
+
+	private static final File CACHE_DIR = new File(RuneLite.RUNELITE_DIR, "citizen-cycle");
+
+	private final RefreshScheduler scheduler = new RefreshScheduler();
 
-	private int lastRefreshSecond = 0;
+	// Only used under this module's lock, kept across endpoint changes since the cycle belongs to the game
+	private final CycleEstimator cycleEstimator = new CycleEstimator();
+
+	// Change feed cursor and etag of the last applied response, -1/null until the first one,
+	// and the server they belong to
+	private volatile long feedCursor = -1;
+	private volatile String feedEtag = null;
+	private volatile Endpoint feedEndpoint = null;
+
+	private PushSubscription push;
+
+	private SnapshotCache snapshotCache;
+	// Set once live data has been applied, even an empty snapshot; guarded by this module's lock
+	private boolean liveApplied = false;
+
+	// Only used under this module's lock
+	private DistractionHistory history;
+
+	// Single-flight poll: at most one outstanding request, later ticks join it
+	private final AtomicBoolean refreshing = new AtomicBoolean(false);
+	private volatile HedgedCall inFlight;
+	// Bumped when the endpoint changes so responses from the old server are ignored
+	private volatile int feedGeneration = 0;
 
 	@Override
 	public void startUp()
 	{
-		worldStatusMap.clear();
-		lastRefreshSecond = 0;
+		httpService.startUp();
+		clearSnapshot();
+		scheduler.reset(getRefreshIntervalSetting());
+		resetFeed();
+		// The stream is ordered, a full snapshot on it is always the latest state
+		push = new PushSubscription(httpService, decoder, () -> feedEndpoint, () -> feedCursor,
+			delta -> applyDelta(delta, null, Long.MAX_VALUE));
+
+		snapshotCache = new SnapshotCache(new File(CACHE_DIR, "snapshot.bin"), executor);
+		history = new DistractionHistory(new HistorySegments(new File(CACHE_DIR, "history"), executor));
+		executor.execute(this::restoreHistory);
+		executor.execute(this::restoreCachedSnapshot);
 	}
 
 	@Override
 	public void shutDown()
 	{
-		worldStatusMap.clear();
+		cancelRefresh();
+		push.close();
+		closeStores();
+		clearSnapshot();
+		resetFeed();
+	}
+
+	@Subscribe
+	public void onPluginConfigChanged(PluginConfigChanged event)
+	{
+		if (event.getKey().equals("authorization"))
+		{
+			httpService.reconfigure();
+		}
+		else if (event.getKey().equals("endpoint"))
+		{
+			// A different server has its own sequence, start over with a full snapshot
+			httpService.reconfigure();
+			cancelRefresh();
+			push.close();
+			clearSnapshot();
+			resetFeed();
+		}
+		else if (event.getKey().equals("pushUpdates") && !config.pushUpdates())
+		{
+			push.close();
+		}
+	}
+
+	/**
+	 * Shows the snapshot saved by the previous session until the first live refresh.
+	 */
+	private synchronized void restoreCachedSnapshot()
+	{
+		Map<Integer, CitizenStatus> statuses = snapshotCache.load();
+		CitizenSnapshot current = snapshot.get();
+		if (statuses.isEmpty() || liveApplied)
+		{
+			// Nothing cached, or live data already arrived
+			return;
+		}
+
+		WorldStatusTable.Builder table = current.getTable().toBuilder(true);
+		for (CitizenStatus status : statuses.values())
+		{
+			table.put(status);
+		}
+
+		CitizenSnapshot cached = new CitizenSnapshot(current.getVersion() + 1, table.build(), true);
+		snapshot.set(cached);
+		log.debug("Restored {} cached citizen statuses", statuses.size());
+		dispatch(new CitizenDataRefreshed(cached));
+	}
+
+	/**
+	 * Loads the distraction history saved by earlier sessions and lets the cycle
+	 * estimator learn from it, so estimates are ready before new cycles are seen.
+	 */
+	private synchronized void restoreHistory()
+	{
+		int restored = history.load();
+
+		long[] starts = new long[DistractionHistory.CAPACITY / 2];
+		long[] ends = new long[DistractionHistory.CAPACITY / 2];
+		for (int world = WorldStatusTable.WORLD_BASE; world < history.worldLimit(); world++)
+		{
+			// Oldest first, as the estimator would have seen them
+			for (int i = history.lastCycles(world, starts.length, starts, ends) - 1; i >= 0; i--)
+			{
+				cycleEstimator.observe(new CitizenStatus(world, true, starts[i], 0, starts[i], null));
+				cycleEstimator.observe(new CitizenStatus(world, false, 0, ends[i], ends[i], null));
+			}
+		}
+		log.debug("Restored {} citizen history records", restored);
+	}
+
+	/**
+	 * Writes out what the snapshot cache and history still hold, before a later startUp
+	 * opens new ones on the same files.
+	 */
+	private synchronized void closeStores()
+	{
+		snapshotCache.close();
+		history.close();
+	}
+
+	/**
+	 * Publishes an empty snapshot. Synchronized like every other writer so versions stay unique.
+	 */
+	private synchronized void clearSnapshot()
+	{
+		CitizenSnapshot current = snapshot.get();
+		CitizenSnapshot next = new CitizenSnapshot(current.getVersion() + 1, current.getTable().toBuilder(true).build());
+		snapshot.set(next);
+		liveApplied = false;
+		dispatch(new CitizenDataRefreshed(next));
+	}
+
+	private synchronized void resetFeed()
+	{
+		feedCursor = -1;
+		feedEtag = null;
+		feedEndpoint = null;
 	}
 
 	@Override
 	public void onSecondElapsed(int secondsSinceStartup)
 	{
-		int refreshInterval = config.refreshInterval();
-		if (refreshInterval <= 0)
+		if (config.pushUpdates())
 		{
-			refreshInterval = 5;
+			push.tick(secondsSinceStartup);
+			if (push.isConnected())
+			{
+				// Live updates arrive over the stream, no need to poll
+				return;
+			}
 		}
 
-		if (secondsSinceStartup - lastRefreshSecond >= refreshInterval)
+		if (scheduler.isDue(secondsSinceStartup))
 		{
-			lastRefreshSecond = secondsSinceStartup;
+			scheduler.onRefresh(secondsSinceStartup, getRefreshIntervalSetting(), hasWorldAboutToOpen());
 			refreshCitizenData();
 		}
 	}
 
+	@Subscribe
+	public void onCitizenDataRefreshFailed(CitizenDataRefreshFailed event)
+	{
+		scheduler.onFailure();
+		log.debug("Citizen refresh failed {} time(s), next poll in ~{}s",
+			scheduler.getFailures(), scheduler.getEffectiveIntervalSeconds());
+	}
+
+	/**
+	 * Interval the next poll was scheduled with, for diagnostics.
+	 */
+	public int getEffectiveRefreshIntervalSeconds()
+	{
+		return scheduler.getEffectiveIntervalSeconds();
+	}
+
+	private int getRefreshIntervalSetting()
+	{
+		int refreshInterval = config.refreshInterval();
+		return refreshInterval <= 0 ? 5 : refreshInterval;
+	}
+
+	private boolean hasWorldAboutToOpen()
+	{
+		return snapshot.get().getTable().anyWindowOpen(serverClock.now());
+	}
+
+	private void cancelRefresh()
+	{
+		feedGeneration++;
+		HedgedCall call = inFlight;
+		if (call != null)
+		{
+			call.cancel();
+		}
+	}
+
 	private void refreshCitizenData()
 	{
-		String endpoint = config.getEndpoint();
-		if (endpoint == null || endpoint.isEmpty())
+		if (!refreshing.compareAndSet(false, true))
 		{
+			log.debug("Citizen refresh still in flight, joining it");
 			return;
 		}
 
-		httpService.get(new Callback()
+		final Endpoint requestEndpoint = feedEndpoint;
+		final long requestCursor = feedCursor;
+		final int generation = feedGeneration;
+
+		inFlight = httpService.get(requestEndpoint, requestCursor, feedEtag, new Callback()
 		{
 			@Override
 			public void onFailure(Call call, IOException e)
 			{
+				refreshing.set(false);
+				if (call.isCanceled() || generation != feedGeneration)
+				{
+					return;
+				}
+
 				log.warn("Failed to refresh citizen data: {}", e.getMessage());
 				dispatch(new CitizenDataRefreshFailed(e.getMessage()));
 			}
@@ -87,74 +293,146 @@ public class BroadcastModule extends PluginModuleContract
 			{
 				try
 				{
+					if (generation != feedGeneration)
+					{
+						// Endpoint changed while this was in flight
+						return;
+					}
+
+					if (response.code() == 304)
+					{
+						// Nothing changed since our cursor
+						scheduler.onSuccess();
+						return;
+					}
+
 					if (!response.isSuccessful())
 					{
 						dispatch(new CitizenDataRefreshFailed("HTTP " + response.code()));
 						return;
 					}
 
-					String body = response.body().string();
-					List<CitizenStatus> statuses = parseResponse(body);
-
-					worldStatusMap.clear();
-					for (CitizenStatus status : statuses)
+					FeedDelta delta;
+					try
 					{
-						worldStatusMap.put(status.getWorld(), status);
+						delta = decoder.decode(response);
+					}
+					catch (IOException | RuntimeException e)
+					{
+						log.warn("Failed to parse citizen data response: {}", e.getMessage());
+						dispatch(new CitizenDataRefreshFailed("Malformed response"));
+						return;
 					}
 
-					dispatch(new CitizenDataRefreshed(statuses));
+					scheduler.onSuccess();
+					delta.source = (Endpoint) call.request().tag();
+					// Another server was asked for a full snapshot, the cursor does not apply to it
+					applyDelta(delta, response.header("ETag"), delta.source == requestEndpoint ? requestCursor : Long.MAX_VALUE);
 				}
 				finally
 				{
 					response.close();
+					refreshing.set(false);
 				}
 			}
 		});
+
+		if (inFlight == null)
+		{
+			// No endpoint configured
+			refreshing.set(false);
+		}
 	}
 
-	private List<CitizenStatus> parseResponse(String json)
+	/**
+	 * Applies either a legacy full array or a change feed delta on top of the current
+	 * snapshot and publishes the result. Called from both the poll and the push stream.
+	 * Responses that are not newer than the applied cursor are discarded.
+	 *
+	 * @param requestCursor cursor the request was made with, a full response below it
+	 *                      means the server restarted and its sequence began again
+	 */
+	private synchronized void applyDelta(FeedDelta delta, String etag, long requestCursor)
 	{
-		List<CitizenStatus> statuses = new ArrayList<>();
+		if (delta.getSource() != feedEndpoint && !delta.isFull())
+		{
+			// Changes against another server's cursor
+			return;
+		}
 
-		try
+		boolean serverRestarted = delta.isFull() && delta.getCursor() < requestCursor;
+		if (delta.getSource() == feedEndpoint && delta.getCursor() >= 0 && delta.getCursor() <= feedCursor && !serverRestarted)
 		{
-			JsonArray array = GSON.fromJson(json, JsonArray.class);
-			for (JsonElement element : array)
+			// Already applied, or older than what we have
+			return;
+		}
+		// Times in the data are on the clock of the server that sent it
+		serverClock.follow(delta.getSource());
+
+		CitizenSnapshot current = snapshot.get();
+		WorldStatusTable.Builder table = current.getTable().toBuilder(delta.isFull());
+		for (int world : delta.getRemoved())
+		{
+			table.remove(world);
+		}
+
+		for (CitizenStatus status : delta.getChanged())
+		{
+			history.record(status);
+			if (!table.put(cycleEstimator.observe(status)))
 			{
-				JsonObject obj = element.getAsJsonObject();
-				CitizenStatus status = new CitizenStatus(
-					obj.get("world").getAsInt(),
-					obj.get("distracted").getAsBoolean(),
-					obj.has("distractionStartTime") ? obj.get("distractionStartTime").getAsLong() : 0,
-					obj.has("distractionEndTime") ? obj.get("distractionEndTime").getAsLong() : 0,
-					obj.has("lastUpdateTime") ? obj.get("lastUpdateTime").getAsLong() : System.currentTimeMillis(),
-					obj.has("reportedBy") ? obj.get("reportedBy").getAsString() : ""
-				);
-				statuses.add(status);
+				log.debug("Ignored status for unknown world {}", status.getWorld());
 			}
 		}
-		catch (Exception e)
+
+		CitizenSnapshot next = new CitizenSnapshot(current.getVersion() + 1, table.build());
+		if (delta.isFull())
+		{
+			log.debug("Applied full snapshot of {} worlds, status table ~{} bytes",
+				next.getTable().size(), next.getTable().footprintBytes());
+		}
+		snapshot.set(next);
+		snapshotCache.save(next);
+		liveApplied = true;
+
+		if (delta.getCursor() < 0)
+		{
+			// Server without change feed support
+			resetFeed();
+		}
+		else
 		{
-			log.warn("Failed to parse citizen data response: {}", e.getMessage());
+			feedCursor = delta.getCursor();
+			feedEtag = etag;
+			feedEndpoint = delta.getSource();
 		}
 
-		return statuses;
+		dispatch(new CitizenDataRefreshed(next));
+	}
+
+	/**
+	 * The latest published snapshot, a consistent view that never changes.
+	 */
+	public CitizenSnapshot getSnapshot()
+	{
+		return snapshot.get();
 	}
 
 	public CitizenStatus getStatusForWorld(int world)
 	{
-		return worldStatusMap.get(world);
+		return snapshot.get().get(world);
 	}
 
 	public List<CitizenStatus> getDistractedWorlds()
 	{
-		List<CitizenStatus> distracted = new ArrayList<>();
-		for (CitizenStatus status : worldStatusMap.values())
+		WorldStatusTable table = snapshot.get().getTable();
+		int[] worlds = new int[table.size()];
+		int count = table.distractedWorlds(serverClock.now(), worlds);
+
+		List<CitizenStatus> distracted = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
 		{
-			if (status.isDistracted() && !status.isStale())
-			{
-				distracted.add(status);
-			}
+			distracted.add(table.get(worlds[i]));
 		}
 		return distracted;
 	}
@@ -0,0 +1,481 @@
+package com.citizencycle.modules.broadcast;
+
+import com.citizencycle.objects.CitizenStatus;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.MediaType;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streams the citizen feed straight from the response body into {@link CitizenStatus}
+ * objects, without materialising the body as a String or a Gson tree.
+ * Unknown fields are skipped and malformed entries are rejected one at a time.
+ * Also decodes the compact binary format, see {@link #decodeBinary(InputStream)}.
+ */
+@Slf4j
+public class CitizenFeedDecoder
+{
+	public static final String BINARY_MEDIA_TYPE = "application/x-citizen-cycle";
+
+	private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+	private static final int BINARY_MAGIC = 0x43;
+	private static final int BINARY_VERSION = 1;
+	private static final int WORLD_BASE = 300;
+	// Lengths read off the wire are checked against these before anything is allocated
+	private static final int MAX_REPORTERS = 4096;
+	private static final int MAX_REPORTER_NAME_BYTES = 256;
+
+	// Server time, stands in for a missing last update
+	private final LongSupplier clock;
+
+	// Shared by the poll callback and the push reader, per-decode figures travel on the FeedDelta
+	private final AtomicLong totalDecodeNanos = new AtomicLong();
+	private final AtomicInteger decodeCount = new AtomicInteger();
+	private final AtomicLong totalPayloadBytes = new AtomicLong();
+	private final AtomicLong totalWireBytes = new AtomicLong();
+
+	public CitizenFeedDecoder(LongSupplier clock)
+	{
+		this.clock = clock;
+	}
+
+	public long getTotalDecodeNanos()
+	{
+		return totalDecodeNanos.get();
+	}
+
+	public int getDecodeCount()
+	{
+		return decodeCount.get();
+	}
+
+	public long getTotalPayloadBytes()
+	{
+		return totalPayloadBytes.get();
+	}
+
+	public long getTotalWireBytes()
+	{
+		return totalWireBytes.get();
+	}
+
+	/**
+	 * Decodes a feed response in whichever format and content encoding the server chose.
+	 */
+	public FeedDelta decode(Response response) throws IOException
+	{
+		ResponseBody body = response.body();
+		MediaType contentType = body.contentType();
+		boolean binary = contentType != null
+			&& BINARY_MEDIA_TYPE.equals(contentType.type() + "/" + contentType.subtype());
+
+		CountingInputStream wire = new CountingInputStream(body.byteStream());
+		CountingInputStream in = "gzip".equalsIgnoreCase(response.header("Content-Encoding"))
+			? new CountingInputStream(new GZIPInputStream(wire))
+			: wire;
+
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+
+		FeedDelta delta = binary
+			? readBinary(in)
+			: readJson(new InputStreamReader(in, contentType != null && contentType.charset() != null
+				? contentType.charset()
+				: StandardCharsets.UTF_8));
+
+		delta.wireBytes = wire.count;
+		totalWireBytes.addAndGet(wire.count);
+		totalPayloadBytes.addAndGet(in.count);
+		record(delta, start, allocatedBefore, in.count, binary);
+		return delta;
+	}
+
+	public FeedDelta decode(Reader body) throws IOException
+	{
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		FeedDelta delta = readJson(body);
+		record(delta, start, allocatedBefore, -1, false);
+		return delta;
+	}
+
+	public FeedDelta decodeBinary(InputStream body) throws IOException
+	{
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		FeedDelta delta = readBinary(body);
+		record(delta, start, allocatedBefore, -1, true);
+		return delta;
+	}
+
+	private void record(FeedDelta delta, long start, long allocatedBefore, long payloadBytes, boolean binary)
+	{
+		delta.decodeNanos = System.nanoTime() - start;
+		long allocatedAfter = allocatedBytes();
+		delta.allocatedBytes = allocatedBefore < 0 || allocatedAfter < 0 ? -1 : allocatedAfter - allocatedBefore;
+		delta.payloadBytes = payloadBytes;
+		delta.binary = binary;
+		totalDecodeNanos.addAndGet(delta.decodeNanos);
+		decodeCount.incrementAndGet();
+
+		log.debug("Decoded {} citizen feed: {} bytes ({} on the wire), {} changed, {} removed, {} rejected in {}us, {} bytes allocated",
+			binary ? "binary" : "json", payloadBytes, delta.wireBytes,
+			delta.getChanged().size(), delta.getRemoved().size(), delta.rejected,
+			delta.decodeNanos / 1000, delta.allocatedBytes);
+	}
+
+	private FeedDelta readJson(Reader body) throws IOException
+	{
+		FeedDelta delta = new FeedDelta();
+		try (JsonReader reader = new JsonReader(body))
+		{
+			if (reader.peek() == JsonToken.BEGIN_ARRAY)
+			{
+				// Server without change feed support, always a full snapshot
+				delta.full = true;
+				readStatuses(reader, delta);
+			}
+			else
+			{
+				readDelta(reader, delta);
+			}
+		}
+		return delta;
+	}
+
+	/**
+	 * Reads the binary format: magic, version, flags (1 = full, 2 = has cursor), [cursor],
+	 * base time, reporter name table, changed entries and removed worlds. Integers are
+	 * unsigned LEB128 varints, worlds are zigzag offsets from 300 and timestamps are
+	 * offsets from the base time.
+	 */
+	private FeedDelta readBinary(InputStream in) throws IOException
+	{
+		if (in.read() != BINARY_MAGIC || in.read() != BINARY_VERSION)
+		{
+			throw new IOException("Unsupported binary citizen feed");
+		}
+
+		FeedDelta delta = new FeedDelta();
+		int flags = readByte(in);
+		delta.full = (flags & 1) != 0;
+		if ((flags & 2) != 0)
+		{
+			delta.cursor = readVarint(in);
+		}
+
+		long baseTime = readVarint(in);
+
+		String[] reporters = new String[readLength(in, MAX_REPORTERS)];
+		for (int i = 0; i < reporters.length; i++)
+		{
+			byte[] utf8 = new byte[readLength(in, MAX_REPORTER_NAME_BYTES)];
+			readFully(in, utf8);
+			reporters[i] = new String(utf8, StandardCharsets.UTF_8);
+		}
+
+		long changed = readVarint(in);
+		for (long i = 0; i < changed; i++)
+		{
+			int world = readWorld(in);
+			int entryFlags = readByte(in);
+			long distractionStartTime = (entryFlags & 2) != 0 ? baseTime + readVarint(in) : 0;
+			long distractionEndTime = (entryFlags & 4) != 0 ? baseTime + readVarint(in) : 0;
+			long lastUpdateTime = baseTime + readVarint(in);
+			long reporter = readVarint(in);
+
+			if (world <= 0 || reporter >= reporters.length)
+			{
+				delta.rejected++;
+				continue;
+			}
+
+			delta.getChanged().add(new CitizenStatus(
+				world,
+				(entryFlags & 1) != 0,
+				distractionStartTime,
+				distractionEndTime,
+				lastUpdateTime,
+				reporters[(int) reporter]
+			));
+		}
+
+		long removed = readVarint(in);
+		for (long i = 0; i < removed; i++)
+		{
+			delta.getRemoved().add(readWorld(in));
+		}
+
+		return delta;
+	}
+
+	private static int readWorld(InputStream in) throws IOException
+	{
+		long zigzag = readVarint(in);
+		return WORLD_BASE + (int) ((zigzag >>> 1) ^ -(zigzag & 1));
+	}
+
+	private static int readLength(InputStream in, int max) throws IOException
+	{
+		long length = readVarint(in);
+		if (length < 0 || length > max)
+		{
+			throw new IOException("Length " + length + " out of range in citizen feed");
+		}
+		return (int) length;
+	}
+
+	private static long readVarint(InputStream in) throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = readByte(in);
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint in citizen feed");
+	}
+
+	private static int readByte(InputStream in) throws IOException
+	{
+		int b = in.read();
+		if (b < 0)
+		{
+			throw new EOFException("Truncated citizen feed");
+		}
+		return b;
+	}
+
+	private static void readFully(InputStream in, byte[] buffer) throws IOException
+	{
+		int offset = 0;
+		while (offset < buffer.length)
+		{
+			int read = in.read(buffer, offset, buffer.length - offset);
+			if (read < 0)
+			{
+				throw new EOFException("Truncated citizen feed");
+			}
+			offset += read;
+		}
+	}
+
+	private void readDelta(JsonReader reader, FeedDelta delta) throws IOException
+	{
+		reader.beginObject();
+		while (reader.hasNext())
+		{
+			switch (reader.nextName())
+			{
+				case "cursor":
+					delta.cursor = reader.nextLong();
+					break;
+				case "full":
+					delta.full = reader.nextBoolean();
+					break;
+				case "changed":
+					readStatuses(reader, delta);
+					break;
+				case "removed":
+					readRemoved(reader, delta);
+					break;
+				default:
+					reader.skipValue();
+			}
+		}
+		reader.endObject();
+	}
+
+	private void readRemoved(JsonReader reader, FeedDelta delta) throws IOException
+	{
+		reader.beginArray();
+		while (reader.hasNext())
+		{
+			if (reader.peek() == JsonToken.NUMBER)
+			{
+				delta.getRemoved().add(reader.nextInt());
+			}
+			else
+			{
+				reader.skipValue();
+				delta.rejected++;
+			}
+		}
+		reader.endArray();
+	}
+
+	private void readStatuses(JsonReader reader, FeedDelta delta) throws IOException
+	{
+		reader.beginArray();
+		while (reader.hasNext())
+		{
+			CitizenStatus status = readStatus(reader);
+			if (status != null)
+			{
+				delta.getChanged().add(status);
+			}
+			else
+			{
+				delta.rejected++;
+			}
+		}
+		reader.endArray();
+	}
+
+	/**
+	 * Reads one entry, returning null if it is not an object or is missing
+	 * {@code world}/{@code distracted}. Always consumes the whole entry.
+	 */
+	private CitizenStatus readStatus(JsonReader reader) throws IOException
+	{
+		if (reader.peek() != JsonToken.BEGIN_OBJECT)
+		{
+			reader.skipValue();
+			return null;
+		}
+
+		int world = -1;
+		Boolean distracted = null;
+		long distractionStartTime = 0;
+		long distractionEndTime = 0;
+		long lastUpdateTime = 0;
+		String reportedBy = "";
+		boolean valid = true;
+
+		reader.beginObject();
+		while (reader.hasNext())
+		{
+			String name = reader.nextName();
+			JsonToken token = reader.peek();
+			switch (name)
+			{
+				case "world":
+					if (token == JsonToken.NUMBER)
+					{
+						world = reader.nextInt();
+						continue;
+					}
+					valid = false;
+					break;
+				case "distracted":
+					if (token == JsonToken.BOOLEAN)
+					{
+						distracted = reader.nextBoolean();
+						continue;
+					}
+					valid = false;
+					break;
+				case "distractionStartTime":
+					if (token == JsonToken.NUMBER)
+					{
+						distractionStartTime = reader.nextLong();
+						continue;
+					}
+					break;
+				case "distractionEndTime":
+					if (token == JsonToken.NUMBER)
+					{
+						distractionEndTime = reader.nextLong();
+						continue;
+					}
+					break;
+				case "lastUpdateTime":
+					if (token == JsonToken.NUMBER)
+					{
+						lastUpdateTime = reader.nextLong();
+						continue;
+					}
+					break;
+				case "reportedBy":
+					if (token == JsonToken.STRING)
+					{
+						reportedBy = reader.nextString();
+						continue;
+					}
+					break;
+			}
+
+			reader.skipValue();
+		}
+		reader.endObject();
+
+		if (!valid || world < 0 || distracted == null)
+		{
+			return null;
+		}
+
+		return new CitizenStatus(
+			world,
+			distracted,
+			distractionStartTime,
+			distractionEndTime,
+			lastUpdateTime != 0 ? lastUpdateTime : clock.getAsLong(),
+			reportedBy
+		);
+	}
+
+	private static class CountingInputStream extends FilterInputStream
+	{
+		private long count;
+
+		CountingInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = super.read();
+			if (b >= 0)
+			{
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int read = super.read(b, off, len);
+			if (read > 0)
+			{
+				count += read;
+			}
+			return read;
+		}
+	}
+
+	private static long allocatedBytes()
+	{
+		if (THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean)
+		{
+			com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) THREAD_MX_BEAN;
+			if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled())
+			{
+				return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+}
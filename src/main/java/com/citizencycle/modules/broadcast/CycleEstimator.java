@@ -0,0 +1,166 @@
+package com.citizencycle.modules.broadcast;
+
+import com.citizencycle.objects.CitizenStatus;
+import com.citizencycle.objects.CycleEstimate;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Online estimate of each world's distraction cycle. Every observed start yields a gap
+ * sample, either directly from the previous end or from the start-to-start interval minus
+ * the typical distraction length, and is folded into an exponentially weighted mean and
+ * variance. Outliers are rejected, but a run of rejected samples that agree with each other
+ * is a new cycle rather than noise and reseeds the estimate from them. State per world is
+ * constant no matter how long the client runs.
+ */
+class CycleEstimator
+{
+	private static final double PRIOR_GAP_SECONDS = CitizenStatus.DISTRACTION_CYCLE_SECONDS;
+	private static final double PRIOR_VARIANCE = 16;
+	private static final double PRIOR_DURATION_SECONDS = 15;
+	// Weight of a new sample once the first few have been averaged
+	private static final double MIN_WEIGHT = 0.2;
+
+	// Anything outside this is a missed transition rather than a cycle
+	private static final double MIN_GAP_SECONDS = 40;
+	private static final double MAX_GAP_SECONDS = 150;
+	private static final double MIN_DURATION_SECONDS = 5;
+	private static final double MAX_DURATION_SECONDS = 40;
+	private static final double OUTLIER_SIGMAS = 4;
+	private static final double MIN_OUTLIER_SECONDS = 10;
+	// Consecutive agreeing outliers it takes to accept that the cycle has changed
+	static final int REGIME_CHANGE_SAMPLES = 3;
+
+	private static class WorldCycle
+	{
+		boolean distracted;
+		long lastStart;
+		long lastEnd;
+		double gapMean = PRIOR_GAP_SECONDS;
+		double gapVariance = PRIOR_VARIANCE;
+		double durationMean = PRIOR_DURATION_SECONDS;
+		int samples;
+		// Mean of the current run of consecutive rejected gaps
+		double rejectedMean;
+		int rejected;
+		CycleEstimate estimate;
+	}
+
+	private final Map<Integer, WorldCycle> worlds = new HashMap<>();
+
+	/**
+	 * Learns from a status received from the server.
+	 *
+	 * @return the status with the world's current estimate attached
+	 */
+	CitizenStatus observe(CitizenStatus status)
+	{
+		WorldCycle cycle = worlds.computeIfAbsent(status.getWorld(), world -> new WorldCycle());
+
+		if (status.isDistracted())
+		{
+			long start = status.getDistractionStartTime();
+			if (cycle.distracted && refines(start, cycle.lastStart))
+			{
+				cycle.lastStart = start;
+			}
+			else if (start > cycle.lastStart)
+			{
+				// The server keeps the previous end alongside a new start
+				long end = Math.max(cycle.lastEnd, status.getDistractionEndTime());
+				if (end > 0 && end < start)
+				{
+					addGap(cycle, (start - end) / 1000.0);
+				}
+				else if (cycle.lastStart > 0)
+				{
+					addGap(cycle, (start - cycle.lastStart) / 1000.0 - cycle.durationMean);
+				}
+				cycle.lastStart = start;
+			}
+		}
+		else
+		{
+			long end = status.getDistractionEndTime();
+			if (!cycle.distracted && refines(end, cycle.lastEnd))
+			{
+				cycle.lastEnd = end;
+			}
+			else if (end > cycle.lastEnd)
+			{
+				if (cycle.lastStart > 0 && cycle.lastStart < end)
+				{
+					double duration = (end - cycle.lastStart) / 1000.0;
+					if (duration >= MIN_DURATION_SECONDS && duration <= MAX_DURATION_SECONDS)
+					{
+						cycle.durationMean += MIN_WEIGHT * (duration - cycle.durationMean);
+					}
+				}
+				cycle.lastEnd = end;
+			}
+		}
+		cycle.distracted = status.isDistracted();
+
+		return cycle.estimate == null ? status : status.withCycle(cycle.estimate);
+	}
+
+	/**
+	 * Whether a time of the same state is the server moving the transition it already
+	 * published to the median of more reports, rather than a new transition. Two starts or
+	 * two ends are always further apart than the shortest gap.
+	 */
+	private static boolean refines(long time, long last)
+	{
+		return last > 0 && time > 0 && Math.abs(time - last) < MIN_GAP_SECONDS * 1000;
+	}
+
+	private static void addGap(WorldCycle cycle, double gap)
+	{
+		if (gap < MIN_GAP_SECONDS || gap > MAX_GAP_SECONDS)
+		{
+			return;
+		}
+
+		double deviation = gap - cycle.gapMean;
+		if (cycle.samples >= 3 && Math.abs(deviation) > Math.max(MIN_OUTLIER_SECONDS, OUTLIER_SIGMAS * Math.sqrt(cycle.gapVariance)))
+		{
+			reject(cycle, gap);
+			return;
+		}
+		cycle.rejected = 0;
+
+		// Plain average for the first samples so the prior washes out quickly
+		double weight = Math.max(MIN_WEIGHT, 1.0 / (cycle.samples + 2));
+		cycle.gapMean += weight * deviation;
+		cycle.gapVariance = (1 - weight) * (cycle.gapVariance + weight * deviation * deviation);
+		cycle.samples++;
+		cycle.estimate = new CycleEstimate(cycle.gapMean, Math.sqrt(cycle.gapVariance), cycle.samples);
+	}
+
+	/**
+	 * Tracks a rejected gap, and once enough in a row agree, starts over from them so a
+	 * lasting change of the cycle is not locked out by the old estimate.
+	 */
+	private static void reject(WorldCycle cycle, double gap)
+	{
+		if (cycle.rejected > 0 && Math.abs(gap - cycle.rejectedMean) > MIN_OUTLIER_SECONDS)
+		{
+			// Disagrees with the run so far, more likely noise than a new cycle
+			cycle.rejected = 0;
+		}
+
+		cycle.rejected++;
+		cycle.rejectedMean += (gap - cycle.rejectedMean) / cycle.rejected;
+		if (cycle.rejected < REGIME_CHANGE_SAMPLES)
+		{
+			return;
+		}
+
+		cycle.gapMean = cycle.rejectedMean;
+		cycle.gapVariance = PRIOR_VARIANCE;
+		cycle.samples = cycle.rejected;
+		cycle.rejected = 0;
+		cycle.estimate = new CycleEstimate(cycle.gapMean, Math.sqrt(cycle.gapVariance), cycle.samples);
+	}
+}
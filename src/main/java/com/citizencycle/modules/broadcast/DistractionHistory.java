@@ -0,0 +1,323 @@
+package com.citizencycle.modules.broadcast;
+
+import com.citizencycle.objects.CitizenStatus;
+import com.citizencycle.objects.WorldStatusTable;
+
+import java.util.Arrays;
+
+/**
+ * Recent distraction starts and ends of every world, in a fixed-size ring per world held
+ * in flat primitive arrays indexed by {@code slot * CAPACITY}. Records are kept in time
+ * order, so queries walk back from the newest and stop early. Old records are
+ * overwritten, memory only grows with the number of worlds. Each ring has its own pool
+ * of reporter names, a ring of CAPACITY records never needs more. New and refined
+ * records are also appended to {@link HistorySegments}, with their reporter, so the
+ * history survives restarts.
+ */
+class DistractionHistory
+{
+	static final byte START = 1;
+	static final byte END = 2;
+
+	// About half an hour of cycles per world
+	static final int CAPACITY = 32;
+	private static final int INITIAL_WORLDS = 320;
+	// The server moves a published transition to the median of later reports, a record of
+	// the same type this close to the last one is that transition again
+	private static final long SAME_TRANSITION_MS = 40_000;
+	private static final short NO_REPORTER = -1;
+
+	private long[] times = new long[INITIAL_WORLDS * CAPACITY];
+	private byte[] types = new byte[INITIAL_WORLDS * CAPACITY];
+	// Index into the ring's reporter pool
+	private short[] reporters = new short[INITIAL_WORLDS * CAPACITY];
+	// Each ring's reporter names and how many of its records use them, also indexed by slot * CAPACITY
+	private String[] names = new String[INITIAL_WORLDS * CAPACITY];
+	private byte[] nameRefs = new byte[INITIAL_WORLDS * CAPACITY];
+	// Next write position and record count of each world's ring
+	private int[] heads = new int[INITIAL_WORLDS];
+	private int[] counts = new int[INITIAL_WORLDS];
+
+	private final HistorySegments segments;
+
+	DistractionHistory(HistorySegments segments)
+	{
+		this.segments = segments;
+	}
+
+	/**
+	 * Fills the rings from disk, refinements update their record as they did when recorded.
+	 *
+	 * @return how many records were added or refined
+	 */
+	int load()
+	{
+		int[] loaded = new int[1];
+		segments.replay((world, type, time, reporter) ->
+		{
+			if (add(world, type, time, reporter))
+			{
+				loaded[0]++;
+			}
+		});
+		return loaded[0];
+	}
+
+	/**
+	 * Persists what is still queued, the history takes no new records afterwards.
+	 */
+	void close()
+	{
+		segments.close();
+	}
+
+	/**
+	 * One past the highest world that may have history.
+	 */
+	int worldLimit()
+	{
+		return WorldStatusTable.WORLD_BASE + heads.length;
+	}
+
+	/**
+	 * Records the transitions a status from the server shows that are newer than the
+	 * world's history, and persists them.
+	 */
+	void record(CitizenStatus status)
+	{
+		int world = status.getWorld();
+		long start = status.getDistractionStartTime();
+		long end = status.getDistractionEndTime();
+		if (status.isDistracted())
+		{
+			// The previous end comes along with a new start, it may not have been seen on its own
+			if (end > 0 && end < start)
+			{
+				append(world, END, end, null);
+			}
+			append(world, START, start, status.getReportedBy());
+		}
+		else
+		{
+			append(world, END, end, status.getReportedBy());
+		}
+	}
+
+	/**
+	 * The last {@code n} complete cycles of a world, newest first.
+	 *
+	 * @return how many start and end pairs were written to the arrays
+	 */
+	int lastCycles(int world, int n, long[] startsOut, long[] endsOut)
+	{
+		int slot = world - WorldStatusTable.WORLD_BASE;
+		if (slot < 0 || slot >= heads.length)
+		{
+			return 0;
+		}
+
+		int found = 0;
+		long end = 0;
+		int limit = Math.min(n, Math.min(startsOut.length, endsOut.length));
+		for (int i = 0; i < counts[slot] && found < limit; i++)
+		{
+			int index = indexOf(slot, i);
+			if (types[index] == END)
+			{
+				end = times[index];
+			}
+			else if (end != 0)
+			{
+				startsOut[found] = times[index];
+				endsOut[found] = end;
+				found++;
+				end = 0;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Records of a world with {@code from <= time < to}, newest first.
+	 *
+	 * @return how many were written to the arrays
+	 */
+	int range(int world, long from, long to, long[] timesOut, byte[] typesOut)
+	{
+		int slot = world - WorldStatusTable.WORLD_BASE;
+		if (slot < 0 || slot >= heads.length)
+		{
+			return 0;
+		}
+
+		int found = 0;
+		int limit = Math.min(timesOut.length, typesOut.length);
+		for (int i = 0; i < counts[slot] && found < limit; i++)
+		{
+			int index = indexOf(slot, i);
+			long time = times[index];
+			if (time < from)
+			{
+				break;
+			}
+			if (time < to)
+			{
+				timesOut[found] = time;
+				typesOut[found] = types[index];
+				found++;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Who reported a world's {@code age}-th newest record, null if unknown.
+	 */
+	String reporterOf(int world, int age)
+	{
+		int slot = world - WorldStatusTable.WORLD_BASE;
+		if (slot < 0 || slot >= heads.length || age >= counts[slot])
+		{
+			return null;
+		}
+
+		short reporter = reporters[indexOf(slot, age)];
+		return reporter == NO_REPORTER ? null : names[slot * CAPACITY + reporter];
+	}
+
+	private void append(int world, byte type, long time, String reporter)
+	{
+		if (add(world, type, time, reporter))
+		{
+			segments.append(world, type, time, reporter);
+		}
+	}
+
+	/**
+	 * Adds a record to the world's ring, or moves the newest one if this is that transition
+	 * refined. Records not newer than the last one are dropped.
+	 *
+	 * @return whether the ring changed
+	 */
+	private boolean add(int world, byte type, long time, String reporter)
+	{
+		int slot = world - WorldStatusTable.WORLD_BASE;
+		if (slot < 0 || time <= 0)
+		{
+			return false;
+		}
+		if (slot >= heads.length)
+		{
+			grow(slot + 1);
+		}
+
+		if (counts[slot] > 0)
+		{
+			int newest = indexOf(slot, 0);
+			if (types[newest] == type && Math.abs(time - times[newest]) < SAME_TRANSITION_MS)
+			{
+				// Already recorded, or refined to before the record it follows
+				if (time == times[newest] || (counts[slot] > 1 && time <= times[indexOf(slot, 1)]))
+				{
+					return false;
+				}
+				times[newest] = time;
+				if (reporter != null)
+				{
+					release(slot, reporters[newest]);
+					reporters[newest] = intern(slot, reporter);
+				}
+				return true;
+			}
+			if (time <= times[newest])
+			{
+				// Older than what we have
+				return false;
+			}
+		}
+
+		int index = slot * CAPACITY + heads[slot];
+		if (counts[slot] == CAPACITY)
+		{
+			// Overwriting the oldest record
+			release(slot, reporters[index]);
+		}
+		else
+		{
+			counts[slot]++;
+		}
+		times[index] = time;
+		types[index] = type;
+		reporters[index] = intern(slot, reporter);
+		heads[slot] = (heads[slot] + 1) % CAPACITY;
+		return true;
+	}
+
+	/**
+	 * Index of a name in the ring's pool, taking a free entry if it is not there yet. The
+	 * ring holds fewer records than the pool has entries, so one is always free.
+	 */
+	private short intern(int slot, String name)
+	{
+		if (name == null)
+		{
+			return NO_REPORTER;
+		}
+
+		int base = slot * CAPACITY;
+		int free = NO_REPORTER;
+		for (int i = 0; i < CAPACITY; i++)
+		{
+			if (nameRefs[base + i] == 0)
+			{
+				if (free == NO_REPORTER)
+				{
+					free = i;
+				}
+			}
+			else if (names[base + i].equals(name))
+			{
+				nameRefs[base + i]++;
+				return (short) i;
+			}
+		}
+
+		names[base + free] = name;
+		nameRefs[base + free] = 1;
+		return (short) free;
+	}
+
+	private void release(int slot, short reporter)
+	{
+		if (reporter == NO_REPORTER)
+		{
+			return;
+		}
+
+		int index = slot * CAPACITY + reporter;
+		if (--nameRefs[index] == 0)
+		{
+			names[index] = null;
+		}
+	}
+
+	/**
+	 * Array index of a world's {@code age}-th newest record.
+	 */
+	private int indexOf(int slot, int age)
+	{
+		return slot * CAPACITY + (heads[slot] - 1 - age + CAPACITY) % CAPACITY;
+	}
+
+	private void grow(int minimum)
+	{
+		int worlds = Math.max(minimum, heads.length * 2);
+		times = Arrays.copyOf(times, worlds * CAPACITY);
+		types = Arrays.copyOf(types, worlds * CAPACITY);
+		reporters = Arrays.copyOf(reporters, worlds * CAPACITY);
+		names = Arrays.copyOf(names, worlds * CAPACITY);
+		nameRefs = Arrays.copyOf(nameRefs, worlds * CAPACITY);
+		heads = Arrays.copyOf(heads, worlds);
+		counts = Arrays.copyOf(counts, worlds);
+	}
+}
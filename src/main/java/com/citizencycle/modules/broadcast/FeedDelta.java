@@ -0,0 +1,34 @@
+package com.citizencycle.modules.broadcast;
+
+import com.citizencycle.objects.CitizenStatus;
+import com.citizencycle.services.Endpoint;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One decoded citizen feed response. A legacy full array decodes to a delta
+ * with {@code full} set and no cursor.
+ */
+@Getter
+public class FeedDelta
+{
+	private final List<CitizenStatus> changed = new ArrayList<>();
+	private final List<Integer> removed = new ArrayList<>();
+
+	long cursor = -1;
+	boolean full;
+	int rejected;
+
+	// Server the delta came from, cursors are only comparable within one server
+	Endpoint source;
+
+	// How decoding went, -1 where it was not measured
+	long decodeNanos;
+	long allocatedBytes = -1;
+	// Uncompressed body size, and its size on the wire before decompression
+	long payloadBytes = -1;
+	long wireBytes = -1;
+	boolean binary;
+}
@@ -0,0 +1,303 @@
+package com.citizencycle.modules.broadcast;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Append-only on-disk log of distraction transitions, split into segments. A segment
+ * starts with a base time and holds fixed-size records timed by a signed offset from it,
+ * so a batch mixing worlds keeps its order and still fits; reporter
+ * names are declared once per segment so any segment can be read on its own. Old
+ * segments are deleted once there are too many or they are too old.
+ */
+@Slf4j
+class HistorySegments
+{
+	interface RecordSink
+	{
+		void accept(int world, byte type, long time, String reporter);
+	}
+
+	private static final int MAGIC = 0x43434831;
+	private static final String PREFIX = "segment-";
+	private static final String SUFFIX = ".bin";
+
+	private static final byte NAME = 3;
+	private static final long MAX_SEGMENT_BYTES = 256 * 1024;
+	// Keeps record offsets within an int either side of the base
+	private static final long MAX_SEGMENT_SPAN_MS = 24L * 60 * 60 * 1000;
+	private static final int MAX_SEGMENTS = 8;
+	private static final long MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+	private static final class PendingRecord
+	{
+		final int world;
+		final byte type;
+		final long time;
+		final String reporter;
+
+		PendingRecord(int world, byte type, long time, String reporter)
+		{
+			this.world = world;
+			this.type = type;
+			this.time = time;
+			this.reporter = reporter;
+		}
+	}
+
+	private final File directory;
+	private final Executor executor;
+
+	// Guarded by this
+	private final List<PendingRecord> pending = new ArrayList<>();
+	private boolean flushScheduled = false;
+	private boolean closed = false;
+
+	// Only touched by the synchronized writer
+	private final Object writeLock = new Object();
+	private File segment;
+	private long segmentBase;
+	private final Map<String, Integer> declared = new HashMap<>();
+
+	HistorySegments(File directory, Executor executor)
+	{
+		this.directory = directory;
+		this.executor = executor;
+	}
+
+	/**
+	 * Queues a record for the next write, writes are batched on the executor.
+	 */
+	synchronized void append(int world, byte type, long time, String reporter)
+	{
+		if (closed)
+		{
+			return;
+		}
+		pending.add(new PendingRecord(world, type, time, reporter));
+		if (!flushScheduled)
+		{
+			flushScheduled = true;
+			executor.execute(this::flush);
+		}
+	}
+
+	/**
+	 * Reads every retained segment, oldest first.
+	 */
+	void replay(RecordSink sink)
+	{
+		synchronized (writeLock)
+		{
+			for (File file : retainedSegments())
+			{
+				read(file, sink);
+			}
+		}
+	}
+
+	/**
+	 * Writes the queued records before returning and ignores later appends.
+	 */
+	void close()
+	{
+		synchronized (this)
+		{
+			closed = true;
+		}
+		flush();
+	}
+
+	private void flush()
+	{
+		// Batches are taken and written under the same lock so they reach the disk in order
+		synchronized (writeLock)
+		{
+			List<PendingRecord> records;
+			synchronized (this)
+			{
+				records = new ArrayList<>(pending);
+				pending.clear();
+				flushScheduled = false;
+			}
+			// Kept in append order, a refinement replays after the record it moves
+
+			try
+			{
+				write(records);
+			}
+			catch (IOException e)
+			{
+				log.debug("Failed to write citizen history: {}", e.getMessage());
+				// Start a fresh segment next time rather than appending to a damaged one
+				segment = null;
+			}
+		}
+	}
+
+	private void write(List<PendingRecord> records) throws IOException
+	{
+		int index = 0;
+		while (index < records.size())
+		{
+			PendingRecord first = records.get(index);
+			if (segment == null || !segment.exists() || segment.length() >= MAX_SEGMENT_BYTES || !fits(first.time))
+			{
+				startSegment(first.time);
+			}
+
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segment, true))))
+			{
+				for (; index < records.size(); index++)
+				{
+					PendingRecord record = records.get(index);
+					if (!fits(record.time))
+					{
+						// Needs a new segment
+						break;
+					}
+
+					int reporter = -1;
+					if (record.reporter != null)
+					{
+						Integer id = declared.get(record.reporter);
+						if (id == null)
+						{
+							id = declared.size();
+							declared.put(record.reporter, id);
+							out.writeByte(NAME);
+							out.writeShort(id);
+							out.writeUTF(record.reporter);
+						}
+						reporter = id;
+					}
+
+					out.writeByte(record.type);
+					out.writeShort(record.world);
+					out.writeInt((int) (record.time - segmentBase));
+					out.writeShort(reporter);
+				}
+			}
+		}
+	}
+
+	private boolean fits(long time)
+	{
+		return Math.abs(time - segmentBase) < MAX_SEGMENT_SPAN_MS;
+	}
+
+	private void startSegment(long base) throws IOException
+	{
+		Files.createDirectories(directory.toPath());
+		File file = new File(directory, String.format("%s%013d%s", PREFIX, base, SUFFIX));
+		while (file.exists())
+		{
+			// Never reuse an existing segment's name, the base only needs to be near its records
+			base++;
+			file = new File(directory, String.format("%s%013d%s", PREFIX, base, SUFFIX));
+		}
+		segment = file;
+		segmentBase = base;
+		declared.clear();
+
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(segment)))
+		{
+			out.writeInt(MAGIC);
+			out.writeLong(base);
+		}
+
+		retainedSegments();
+	}
+
+	/**
+	 * Deletes segments beyond the retention policy and returns the rest, oldest first.
+	 */
+	private List<File> retainedSegments()
+	{
+		File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+		if (files == null)
+		{
+			return new ArrayList<>();
+		}
+
+		// Zero padded base times sort by name
+		Arrays.sort(files);
+		long cutoff = System.currentTimeMillis() - MAX_AGE_MS;
+		List<File> retained = new ArrayList<>();
+		for (int i = 0; i < files.length; i++)
+		{
+			File file = files[i];
+			boolean tooMany = files.length - i > MAX_SEGMENTS;
+			if ((tooMany || file.lastModified() < cutoff) && !file.equals(segment))
+			{
+				if (!file.delete())
+				{
+					log.debug("Failed to delete old citizen history segment {}", file.getName());
+				}
+				continue;
+			}
+			retained.add(file);
+		}
+		return retained;
+	}
+
+	private static void read(File file, RecordSink sink)
+	{
+		Map<Integer, String> names = new HashMap<>();
+		Set<Integer> warned = new HashSet<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()))))
+		{
+			if (in.readInt() != MAGIC)
+			{
+				return;
+			}
+
+			long base = in.readLong();
+			while (true)
+			{
+				byte type = in.readByte();
+				if (type == NAME)
+				{
+					int id = in.readUnsignedShort();
+					names.put(id, in.readUTF());
+					continue;
+				}
+
+				int world = in.readUnsignedShort();
+				long time = base + in.readInt();
+				int reporter = in.readShort();
+				String name = reporter < 0 ? null : names.get(reporter);
+				if (reporter >= 0 && name == null && warned.add(reporter))
+				{
+					log.debug("Undeclared reporter {} in {}", reporter, file.getName());
+				}
+				sink.accept(world, type, time, name);
+			}
+		}
+		catch (EOFException e)
+		{
+			// End of the segment, or a record cut short by a crash
+		}
+		catch (IOException e)
+		{
+			log.debug("Failed to read citizen history segment {}: {}", file.getName(), e.getMessage());
+		}
+	}
+}
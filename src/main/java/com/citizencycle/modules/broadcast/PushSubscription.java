@@ -0,0 +1,200 @@
+package com.citizencycle.modules.broadcast;
+
+import com.citizencycle.services.Endpoint;
+import com.citizencycle.services.HttpService;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+import okio.BufferedSource;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Long-lived Server-Sent Events subscription to the citizen feed. Reconnects with
+ * exponential backoff and resumes from the last applied cursor; while it is not
+ * connected the regular poll takes over.
+ */
+@Slf4j
+class PushSubscription implements Callback
+{
+	private static final int MAX_RECONNECT_DELAY_SECONDS = 60;
+	// Servers without the stream are only re-checked occasionally
+	private static final int UNSUPPORTED_RETRY_SECONDS = 300;
+
+	private final HttpService httpService;
+	private final CitizenFeedDecoder decoder;
+	private final Supplier<Endpoint> cursorEndpointSupplier;
+	private final LongSupplier cursorSupplier;
+	private final Consumer<FeedDelta> deltaConsumer;
+
+	private Call call;
+	private volatile boolean connected = false;
+	private int failures = 0;
+	private int nextAttemptSecond = 0;
+	private int currentSecond = 0;
+
+	PushSubscription(HttpService httpService, CitizenFeedDecoder decoder,
+		Supplier<Endpoint> cursorEndpointSupplier, LongSupplier cursorSupplier, Consumer<FeedDelta> deltaConsumer)
+	{
+		this.httpService = httpService;
+		this.decoder = decoder;
+		this.cursorEndpointSupplier = cursorEndpointSupplier;
+		this.cursorSupplier = cursorSupplier;
+		this.deltaConsumer = deltaConsumer;
+	}
+
+	boolean isConnected()
+	{
+		return connected;
+	}
+
+	synchronized void tick(int secondsSinceStartup)
+	{
+		currentSecond = secondsSinceStartup;
+		if (call != null || secondsSinceStartup < nextAttemptSecond)
+		{
+			return;
+		}
+
+		call = httpService.openStream(cursorEndpointSupplier.get(), cursorSupplier.getAsLong(), this);
+	}
+
+	synchronized void close()
+	{
+		if (call != null)
+		{
+			call.cancel();
+			call = null;
+		}
+		connected = false;
+		failures = 0;
+		nextAttemptSecond = 0;
+	}
+
+	@Override
+	public void onFailure(Call failedCall, IOException e)
+	{
+		if (!failedCall.isCanceled())
+		{
+			log.debug("Citizen push stream failed: {}", e.getMessage());
+		}
+		disconnected(failedCall, false);
+	}
+
+	@Override
+	public void onResponse(Call streamCall, Response response)
+	{
+		try
+		{
+			if (!response.isSuccessful())
+			{
+				log.debug("Citizen push stream unavailable: HTTP {}", response.code());
+				disconnected(streamCall, response.code() == 404);
+				return;
+			}
+
+			if (!markConnected(streamCall))
+			{
+				// Closed or replaced while connecting
+				return;
+			}
+
+			log.debug("Citizen push stream connected");
+			readEvents(response.body().source(), (Endpoint) streamCall.request().tag());
+			disconnected(streamCall, false);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			if (!streamCall.isCanceled())
+			{
+				log.debug("Citizen push stream closed: {}", e.getMessage());
+			}
+			disconnected(streamCall, false);
+		}
+		finally
+		{
+			response.close();
+		}
+	}
+
+	private void readEvents(BufferedSource source, Endpoint endpoint) throws IOException
+	{
+		String event = null;
+		StringBuilder data = new StringBuilder();
+
+		String line;
+		while ((line = source.readUtf8Line()) != null)
+		{
+			if (line.isEmpty())
+			{
+				// Blank line dispatches the event
+				if ("delta".equals(event) && data.length() > 0)
+				{
+					FeedDelta delta = decoder.decode(new StringReader(data.toString()));
+					delta.source = endpoint;
+					deltaConsumer.accept(delta);
+					synchronized (this)
+					{
+						failures = 0;
+					}
+				}
+				event = null;
+				data.setLength(0);
+			}
+			else if (line.startsWith("event:"))
+			{
+				event = line.substring(6).trim();
+			}
+			else if (line.startsWith("data:"))
+			{
+				if (data.length() > 0)
+				{
+					data.append('\n');
+				}
+				data.append(line.substring(5).trim());
+			}
+			// Comments (heartbeats) and ids are ignored, the cursor inside the data is authoritative
+		}
+	}
+
+	private synchronized boolean markConnected(Call streamCall)
+	{
+		if (call != streamCall)
+		{
+			return false;
+		}
+
+		connected = true;
+		return true;
+	}
+
+	/**
+	 * Only the current call decides whether the stream is up, a late callback from a
+	 * cancelled or replaced call is ignored.
+	 */
+	private synchronized void disconnected(Call closedCall, boolean unsupported)
+	{
+		if (call != closedCall)
+		{
+			// Already closed or replaced
+			return;
+		}
+
+		connected = false;
+		call = null;
+		if (unsupported)
+		{
+			nextAttemptSecond = currentSecond + UNSUPPORTED_RETRY_SECONDS;
+			return;
+		}
+
+		int delay = Math.min(MAX_RECONNECT_DELAY_SECONDS, 1 << Math.min(failures, 6));
+		failures++;
+		nextAttemptSecond = currentSecond + delay;
+	}
+}
@@ -0,0 +1,102 @@
+package com.citizencycle.modules.broadcast;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides when the next poll of the citizen feed is due. The configured refresh
+ * interval is the baseline and the cap while the server is healthy; it is
+ * shortened while a world is about to open and backed off exponentially
+ * while refreshes fail. Every interval gets jitter so clients drift apart.
+ */
+class RefreshScheduler
+{
+	private static final int MIN_INTERVAL_SECONDS = 2;
+	private static final int MAX_BACKOFF_SECONDS = 120;
+	private static final double JITTER = 0.2;
+
+	private int baselineSeconds = 5;
+	private int lastRefreshSecond = 0;
+	private int nextRefreshSecond = 0;
+	private int effectiveIntervalSeconds = 5;
+	private int failures = 0;
+
+	/**
+	 * Spreads the first refresh over one baseline interval.
+	 */
+	synchronized void reset(int baselineSeconds)
+	{
+		this.baselineSeconds = baselineSeconds;
+		effectiveIntervalSeconds = baselineSeconds;
+		failures = 0;
+		lastRefreshSecond = 0;
+		nextRefreshSecond = 1 + ThreadLocalRandom.current().nextInt(baselineSeconds);
+	}
+
+	synchronized boolean isDue(int secondsSinceStartup)
+	{
+		return secondsSinceStartup >= nextRefreshSecond;
+	}
+
+	/**
+	 * Records a refresh sent now and schedules the following one.
+	 *
+	 * @param boost whether some world is approaching or in its optimal hop window
+	 */
+	synchronized void onRefresh(int secondsSinceStartup, int baselineSeconds, boolean boost)
+	{
+		this.baselineSeconds = baselineSeconds;
+		lastRefreshSecond = secondsSinceStartup;
+
+		if (failures > 0)
+		{
+			effectiveIntervalSeconds = backoffInterval();
+		}
+		else if (boost)
+		{
+			effectiveIntervalSeconds = Math.max(MIN_INTERVAL_SECONDS, baselineSeconds / 2);
+		}
+		else
+		{
+			effectiveIntervalSeconds = baselineSeconds;
+		}
+
+		nextRefreshSecond = lastRefreshSecond + jitter(effectiveIntervalSeconds);
+	}
+
+	synchronized void onSuccess()
+	{
+		failures = 0;
+	}
+
+	synchronized void onFailure()
+	{
+		failures++;
+		effectiveIntervalSeconds = backoffInterval();
+		nextRefreshSecond = lastRefreshSecond + jitter(effectiveIntervalSeconds);
+	}
+
+	/**
+	 * Interval the next refresh was scheduled with, before jitter.
+	 */
+	synchronized int getEffectiveIntervalSeconds()
+	{
+		return effectiveIntervalSeconds;
+	}
+
+	synchronized int getFailures()
+	{
+		return failures;
+	}
+
+	private int backoffInterval()
+	{
+		long interval = (long) baselineSeconds << Math.min(failures, 10);
+		return (int) Math.min(Math.max(baselineSeconds, MAX_BACKOFF_SECONDS), interval);
+	}
+
+	private static int jitter(int intervalSeconds)
+	{
+		double factor = 1 + ThreadLocalRandom.current().nextDouble(-JITTER, JITTER);
+		return Math.max(1, (int) Math.round(intervalSeconds * factor));
+	}
+}
@@ -0,0 +1,137 @@
+package com.citizencycle.modules.broadcast;
+
+import com.citizencycle.objects.CitizenSnapshot;
+import com.citizencycle.objects.CitizenStatus;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the latest applied snapshot on disk so the side panel can show the last known
+ * cycle phase of every world right after login, before the first live refresh.
+ * Writes are coalesced: however many snapshots arrive, at most one write is pending
+ * and it always stores the newest one.
+ */
+@Slf4j
+class SnapshotCache
+{
+	private static final int MAGIC = 0x43434331; // "CCC1"
+
+	private final File file;
+	private final Executor executor;
+	private final AtomicReference<CitizenSnapshot> pending = new AtomicReference<>();
+	private volatile boolean closed = false;
+
+	SnapshotCache(File file, Executor executor)
+	{
+		this.file = file;
+		this.executor = executor;
+	}
+
+	void save(CitizenSnapshot snapshot)
+	{
+		if (closed)
+		{
+			return;
+		}
+		if (pending.getAndSet(snapshot) == null)
+		{
+			executor.execute(this::writePending);
+		}
+	}
+
+	/**
+	 * Reads the cached statuses, empty if there is no usable cache.
+	 */
+	Map<Integer, CitizenStatus> load()
+	{
+		Map<Integer, CitizenStatus> statuses = new HashMap<>();
+		if (!file.exists())
+		{
+			return statuses;
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()))))
+		{
+			if (in.readInt() != MAGIC)
+			{
+				return statuses;
+			}
+
+			int count = in.readUnsignedShort();
+			for (int i = 0; i < count; i++)
+			{
+				int world = in.readUnsignedShort();
+				boolean distracted = in.readBoolean();
+				long distractionStartTime = in.readLong();
+				long distractionEndTime = in.readLong();
+				long lastUpdateTime = in.readLong();
+				String reportedBy = in.readUTF();
+				statuses.put(world, new CitizenStatus(world, distracted, distractionStartTime, distractionEndTime, lastUpdateTime, reportedBy));
+			}
+		}
+		catch (IOException e)
+		{
+			log.debug("Failed to read citizen snapshot cache: {}", e.getMessage());
+			statuses.clear();
+		}
+
+		return statuses;
+	}
+
+	/**
+	 * Writes the pending snapshot, if any, before returning and ignores later saves.
+	 */
+	void close()
+	{
+		closed = true;
+		writePending();
+	}
+
+	private synchronized void writePending()
+	{
+		CitizenSnapshot snapshot = pending.getAndSet(null);
+		if (snapshot == null)
+		{
+			return;
+		}
+
+		File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+		try
+		{
+			Files.createDirectories(file.getParentFile().toPath());
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp.toPath()))))
+			{
+				out.writeInt(MAGIC);
+				out.writeShort(snapshot.getStatusList().size());
+				for (CitizenStatus status : snapshot.getStatusList())
+				{
+					out.writeShort(status.getWorld());
+					out.writeBoolean(status.isDistracted());
+					out.writeLong(status.getDistractionStartTime());
+					out.writeLong(status.getDistractionEndTime());
+					out.writeLong(status.getLastUpdateTime());
+					out.writeUTF(status.getReportedBy() == null ? "" : status.getReportedBy());
+				}
+			}
+
+			// Readers never see a half-written file
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			log.debug("Failed to write citizen snapshot cache: {}", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package com.citizencycle.modules.citizen;
+
+import lombok.Getter;
+import net.runelite.api.Player;
+import net.runelite.api.WorldView;
+import net.runelite.api.coords.WorldPoint;
+
+/**
+ * Bounding box around Civitas illa Fortis, the only place wealthy citizens walk. The
+ * loaded scene is checked first, which costs nothing, so the player's location is only
+ * looked up when the city could be nearby.
+ */
+class CitizenGeofence
+{
+	private static final int MIN_X = 1560;
+	private static final int MAX_X = 1830;
+	private static final int MIN_Y = 3030;
+	private static final int MAX_Y = 3200;
+
+	// Extra tiles the player has to walk out before leaving, so the edge does not flap
+	private static final int EXIT_MARGIN = 16;
+
+	@Getter
+	private boolean inside = false;
+
+	/**
+	 * Re-evaluates whether the player is in the city.
+	 *
+	 * @return true while the player is inside
+	 */
+	boolean update(WorldView worldView, Player player)
+	{
+		int margin = inside ? EXIT_MARGIN : 0;
+
+		int baseX = worldView.getBaseX();
+		int baseY = worldView.getBaseY();
+		if (baseX > MAX_X + margin || baseX + worldView.getSizeX() < MIN_X - margin
+			|| baseY > MAX_Y + margin || baseY + worldView.getSizeY() < MIN_Y - margin)
+		{
+			inside = false;
+			return false;
+		}
+
+		WorldPoint location = player.getWorldLocation();
+		inside = location.getX() >= MIN_X - margin && location.getX() <= MAX_X + margin
+			&& location.getY() >= MIN_Y - margin && location.getY() <= MAX_Y + margin;
+		return inside;
+	}
+
+	void reset()
+	{
+		inside = false;
+	}
+}
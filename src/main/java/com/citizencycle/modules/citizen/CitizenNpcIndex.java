@@ -0,0 +1,106 @@
+package com.citizencycle.modules.citizen;
+
+import net.runelite.api.Actor;
+import net.runelite.api.NPC;
+import net.runelite.api.WorldView;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Wealthy citizens and children (combat level 0 NPCs) in the scene, kept up to date from
+ * spawn, despawn and change events so the observer never scans every loaded NPC.
+ */
+class CitizenNpcIndex
+{
+	// The wealthy citizen ids are contiguous, checked as a range so no id is boxed
+	private static final int FIRST_WEALTHY_CITIZEN_ID = 13302;
+	private static final int LAST_WEALTHY_CITIZEN_ID = 13305;
+	private static final String WEALTHY_CITIZEN_NAME = "Wealthy citizen";
+
+	private final List<NPC> citizens = new ArrayList<>();
+	private final Set<NPC> children = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	void add(NPC npc)
+	{
+		if (isWealthyCitizen(npc))
+		{
+			if (!citizens.contains(npc))
+			{
+				citizens.add(npc);
+			}
+		}
+		else if (npc.getCombatLevel() == 0)
+		{
+			children.add(npc);
+		}
+	}
+
+	void remove(NPC npc)
+	{
+		citizens.remove(npc);
+		children.remove(npc);
+	}
+
+	/**
+	 * Re-classifies an NPC whose composition changed.
+	 */
+	void update(NPC npc)
+	{
+		remove(npc);
+		add(npc);
+	}
+
+	/**
+	 * Seeds the index from the NPCs already loaded, used when the player enters the city.
+	 */
+	void rebuild(WorldView worldView)
+	{
+		clear();
+		for (NPC npc : worldView.npcs())
+		{
+			if (npc != null)
+			{
+				add(npc);
+			}
+		}
+	}
+
+	void clear()
+	{
+		citizens.clear();
+		children.clear();
+	}
+
+	/**
+	 * Tracked citizens, iterate by index. Only valid on the client thread.
+	 */
+	List<NPC> getCitizens()
+	{
+		return citizens;
+	}
+
+	boolean isCitizen(Actor actor)
+	{
+		return actor instanceof NPC && citizens.contains(actor);
+	}
+
+	boolean isChild(Actor actor)
+	{
+		return actor instanceof NPC && children.contains(actor);
+	}
+
+	private static boolean isWealthyCitizen(NPC npc)
+	{
+		int id = npc.getId();
+		if (id >= FIRST_WEALTHY_CITIZEN_ID && id <= LAST_WEALTHY_CITIZEN_ID)
+		{
+			return true;
+		}
+		// Name fallback for new variants, only evaluated on spawn
+		return WEALTHY_CITIZEN_NAME.equals(npc.getName());
+	}
+}
@@ -4,28 +4,40 @@ import com.google.inject.Inject;
 import com.citizencycle.CitizenCycleConfig;
 import com.citizencycle.PluginModuleContract;
 import com.citizencycle.events.CitizenStatusChanged;
+import com.citizencycle.events.PluginConfigChanged;
 import com.citizencycle.objects.BroadcastPayload;
 import com.citizencycle.objects.CitizenStatus;
 import com.citizencycle.services.HttpService;
+import com.citizencycle.services.ServerClock;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import net.runelite.api.*;
+import net.runelite.api.coords.WorldPoint;
 import net.runelite.api.events.GameStateChanged;
 import net.runelite.api.events.GameTick;
+import net.runelite.api.events.InteractingChanged;
+import net.runelite.api.events.NpcChanged;
+import net.runelite.api.events.NpcDespawned;
+import net.runelite.api.events.NpcSpawned;
 import net.runelite.client.eventbus.Subscribe;
-import okhttp3.Call;
-import okhttp3.Callback;
-import okhttp3.Response;
 
-import java.io.IOException;
-import java.util.Set;
+import java.util.List;
 
 @Slf4j
 public class CitizenObserverModule extends PluginModuleContract
 {
-	private static final Set<Integer> WEALTHY_CITIZEN_NPC_IDS = Set.of(13302, 13303, 13304, 13305);
-	private static final String WEALTHY_CITIZEN_NAME = "Wealthy citizen";
 	private static final int THIEVING_RANGE = 15;
+	// Interaction events drive detection, the poll only catches anything they missed
+	static final int CONSISTENCY_CHECK_TICKS = 10;
+
+	// Reported with each transition so the server can weigh it against other reporters
+	private static final double EVENT_CONFIDENCE = 1.0;
+	// Caught by the poll, the tick may be up to a poll interval late
+	private static final double POLL_CONFIDENCE = 0.6;
+	// The citizen left the scene, it may still be distracted out of view
+	private static final double DESPAWN_CONFIDENCE = 0.4;
+	// Already underway when the player arrived, the real start was earlier
+	private static final double ARRIVAL_CONFIDENCE = 0.3;
 
 	@Inject
 	private Client client;
@@ -36,6 +48,9 @@ public class CitizenObserverModule extends PluginModuleContract
 	@Inject
 	private HttpService httpService;
 
+	@Inject
+	private ServerClock serverClock;
+
 	@Getter
 	private boolean inThievingArea = false;
 
@@ -48,31 +63,67 @@ public class CitizenObserverModule extends PluginModuleContract
 	@Getter
 	private long distractionStartTime = 0;
 
-	private boolean wasDistracted = false;
-	private boolean hasBroadcastedDistraction = false;
+	@Getter
+	private int distractionStartTick = -1;
+
+	private int lastConsistencyCheckTick = 0;
 	private boolean hasBroadcastedEnd = false;
 
+	// Reading a position allocates a point, so positions are only read when the player moved,
+	// the scene moved, or the periodic check is due; every other tick reuses these
+	private boolean located = false;
+	private int lastLocatedTick = 0;
+	private boolean wasMoving = false;
+	private int sceneBaseX = -1;
+	private int sceneBaseY = -1;
+
+	// First tick of an observed change that is not confirmed yet, -1 when none is pending
+	private int pendingSinceTick = -1;
+	// Cached, reading config on the tick path goes through the config manager
+	private int confirmTicks = 1;
+	// Confidence of how the latest citizen change was seen
+	private double changeConfidence = EVENT_CONFIDENCE;
+
+	private final CitizenNpcIndex npcIndex = new CitizenNpcIndex();
+	private final CitizenStateTable citizenStates = new CitizenStateTable();
+	private final CitizenGeofence geofence = new CitizenGeofence();
+
 	@Override
 	public void startUp()
 	{
 		resetState();
+		confirmTicks = Math.max(1, config.confirmTicks());
 	}
 
 	@Override
 	public void shutDown()
 	{
+		httpService.flushOutbound(true);
 		resetState();
 	}
 
+	@Override
+	public void onSecondElapsed(int secondsSinceStartup)
+	{
+		// Retries reports that failed to send earlier
+		httpService.flushOutbound(false);
+	}
+
 	private void resetState()
 	{
 		inThievingArea = false;
 		citizenDistracted = false;
 		distractedCitizen = null;
 		distractionStartTime = 0;
-		wasDistracted = false;
-		hasBroadcastedDistraction = false;
+		distractionStartTick = -1;
+		lastConsistencyCheckTick = 0;
 		hasBroadcastedEnd = false;
+		located = false;
+		pendingSinceTick = -1;
+		changeConfidence = EVENT_CONFIDENCE;
+		citizenStates.clear();
+		// The index is rebuilt from the scene on the next tick inside the city
+		geofence.reset();
 	}
 
 	@Subscribe
@@ -81,9 +132,67 @@ public class CitizenObserverModule extends PluginModuleContract
 		if (event.getGameState() == GameState.LOGIN_SCREEN || event.getGameState() == GameState.HOPPING)
 		{
 			resetState();
+			npcIndex.clear();
+		}
+	}
+
+	@Subscribe
+	public void onPluginConfigChanged(PluginConfigChanged event)
+	{
+		if (event.getKey().equals("confirmTicks"))
+		{
+			confirmTicks = Math.max(1, config.confirmTicks());
+		}
+	}
+
+	@Subscribe
+	public void onNpcSpawned(NpcSpawned event)
+	{
+		if (geofence.isInside())
+		{
+			npcIndex.add(event.getNpc());
+		}
+	}
+
+	@Subscribe
+	public void onNpcDespawned(NpcDespawned event)
+	{
+		NPC npc = event.getNpc();
+		boolean citizen = npcIndex.isCitizen(npc);
+		npcIndex.remove(npc);
+
+		if (citizen && client.getGameState() == GameState.LOGGED_IN
+			&& citizenStates.remove(npc.getIndex(), client.getTickCount()))
+		{
+			// A citizen walking out of the scene ends its distraction as far as we can tell
+			changeConfidence = DESPAWN_CONFIDENCE;
+			handleDistractionStateChange(client.getTickCount());
 		}
 	}
 
+	@Subscribe
+	public void onNpcChanged(NpcChanged event)
+	{
+		if (geofence.isInside())
+		{
+			npcIndex.update(event.getNpc());
+		}
+	}
+
+	@Subscribe
+	public void onInteractingChanged(InteractingChanged event)
+	{
+		if (!inThievingArea || !npcIndex.isCitizen(event.getSource()))
+		{
+			return;
+		}
+
+		// Fired while the tick is processed, so the transition is stamped with the tick it happened on
+		int currentTick = client.getTickCount();
+		updateDistractionStatus(currentTick, EVENT_CONFIDENCE);
+		handleDistractionStateChange(currentTick);
+	}
+
 	@Subscribe
 	public void onGameTick(GameTick tick)
 	{
@@ -93,107 +202,180 @@ public class CitizenObserverModule extends PluginModuleContract
 		}
 
 		Player player = client.getLocalPlayer();
-		if (player == null)
+		if (player == null || player.getWorldView() == null)
 		{
 			return;
 		}
 
-		updateThievingAreaStatus(player);
+		int currentTick = client.getTickCount();
+		WorldView worldView = player.getWorldView();
+		boolean moving = player.getPoseAnimation() != player.getIdlePoseAnimation();
+		boolean sceneMoved = worldView.getBaseX() != sceneBaseX || worldView.getBaseY() != sceneBaseY;
+		boolean wasInThievingArea = inThievingArea;
+
+		// Also once more on the tick the player stops, for the tile they stopped on
+		if (!located || moving || wasMoving || sceneMoved || currentTick - lastLocatedTick >= CONSISTENCY_CHECK_TICKS)
+		{
+			located = true;
+			lastLocatedTick = currentTick;
+			sceneBaseX = worldView.getBaseX();
+			sceneBaseY = worldView.getBaseY();
+
+			boolean wasInCity = geofence.isInside();
+			if (!geofence.update(worldView, player))
+			{
+				if (wasInCity)
+				{
+					// Dormant until the player comes back
+					log.debug("Left Civitas illa Fortis, citizen tracking paused");
+					resetState();
+					npcIndex.clear();
+				}
+				wasMoving = moving;
+				return;
+			}
+
+			if (!wasInCity)
+			{
+				// Spawns are ignored while dormant, pick up what is already loaded
+				npcIndex.rebuild(worldView);
+			}
 
-		if (!inThievingArea)
+			updateThievingAreaStatus(player);
+		}
+		wasMoving = moving;
+
+		if (!geofence.isInside() || !inThievingArea)
 		{
 			return;
 		}
 
-		updateDistractionStatus(player);
-		handleDistractionStateChange();
+		if (!wasInThievingArea || currentTick - lastConsistencyCheckTick >= CONSISTENCY_CHECK_TICKS)
+		{
+			lastConsistencyCheckTick = currentTick;
+			updateDistractionStatus(currentTick, wasInThievingArea ? POLL_CONFIDENCE : ARRIVAL_CONFIDENCE);
+			handleDistractionStateChange(currentTick);
+		}
+		else if (pendingSinceTick != -1)
+		{
+			// Confirms or drops a pending change once enough ticks have passed
+			handleDistractionStateChange(currentTick);
+		}
 	}
 
 	private void updateThievingAreaStatus(Player player)
 	{
-		WorldView worldView = player.getWorldView();
-		if (worldView == null)
+		List<NPC> citizens = npcIndex.getCitizens();
+		if (citizens.isEmpty())
 		{
 			inThievingArea = false;
 			return;
 		}
 
-		for (NPC npc : worldView.npcs())
+		WorldPoint playerLocation = player.getWorldLocation();
+		for (int i = 0; i < citizens.size(); i++)
 		{
-			if (npc == null) continue;
-
-			if (WEALTHY_CITIZEN_NPC_IDS.contains(npc.getId()))
+			if (playerLocation.distanceTo(citizens.get(i).getWorldLocation()) <= THIEVING_RANGE)
 			{
-				int distance = player.getWorldLocation().distanceTo(npc.getWorldLocation());
-				if (distance <= THIEVING_RANGE)
-				{
-					inThievingArea = true;
-					return;
-				}
+				inThievingArea = true;
+				return;
 			}
 		}
 
 		inThievingArea = false;
 	}
 
-	private void updateDistractionStatus(Player player)
+	private void updateDistractionStatus(int currentTick, double confidence)
 	{
-		WorldView worldView = player.getWorldView();
-		if (worldView == null)
+		List<NPC> citizens = npcIndex.getCitizens();
+		for (int i = 0; i < citizens.size(); i++)
 		{
-			citizenDistracted = false;
-			distractedCitizen = null;
-			return;
+			NPC npc = citizens.get(i);
+			boolean distracted = npc.isInteracting() && npcIndex.isChild(npc.getInteracting());
+			if (citizenStates.update(npc.getIndex(), distracted, currentTick))
+			{
+				changeConfidence = confidence;
+				log.debug("Wealthy citizen {} distraction {} on tick {}", npc.getIndex(), distracted ? "started" : "ended", currentTick);
+			}
+		}
+	}
+
+	/**
+	 * Confirms a change in the world-level state once it has held for the configured number
+	 * of ticks. The world counts as distracted while any citizen is, and a confirmed change
+	 * is backdated to the tick it was first observed on.
+	 */
+	private void handleDistractionStateChange(int currentTick)
+	{
+		boolean observed = citizenStates.getDistractedCount() > 0;
+		if (observed)
+		{
+			distractedCitizen = findCitizen(citizenStates.earliestDistracted());
 		}
 
-		boolean foundDistracted = false;
-		NPC foundDistractedNpc = null;
+		if (observed == citizenDistracted)
+		{
+			if (pendingSinceTick != -1)
+			{
+				log.debug("Ignored distraction flicker from tick {} to {}", pendingSinceTick, currentTick);
+				pendingSinceTick = -1;
+			}
+			return;
+		}
 
-		for (NPC npc : worldView.npcs())
+		if (pendingSinceTick == -1)
 		{
-			if (npc == null) continue;
+			pendingSinceTick = observed
+				? citizenStates.getStartTick(citizenStates.earliestDistracted())
+				: citizenStates.latestEndTick();
 
-			String npcName = npc.getName();
-			if (npcName != null && npcName.equals(WEALTHY_CITIZEN_NAME))
+			if (pendingSinceTick == CitizenStateTable.NONE)
 			{
-				if (npc.isInteracting())
-				{
-					Actor interactingWith = npc.getInteracting();
-					if (interactingWith != null && interactingWith.getCombatLevel() == 0)
-					{
-						foundDistracted = true;
-						foundDistractedNpc = npc;
-						break;
-					}
-				}
+				pendingSinceTick = currentTick;
+			}
+			else if (!observed && pendingSinceTick < distractionStartTick)
+			{
+				// An end can never come before the start it closes
+				pendingSinceTick = distractionStartTick;
 			}
 		}
 
-		citizenDistracted = foundDistracted;
-		distractedCitizen = foundDistractedNpc;
+		if (currentTick - pendingSinceTick + 1 < confirmTicks)
+		{
+			return;
+		}
 
-		if (citizenDistracted && !wasDistracted)
+		// The only place a tick becomes a time
+		long transitionTime = serverClock.tickToTime(pendingSinceTick, currentTick);
+		citizenDistracted = observed;
+		if (observed)
 		{
-			distractionStartTime = System.currentTimeMillis();
+			distractionStartTime = transitionTime;
+			distractionStartTick = pendingSinceTick;
+			onDistractionStarted();
 		}
-		else if (!citizenDistracted)
+		else
 		{
+			NPC lastCitizen = distractedCitizen;
+			distractedCitizen = null;
 			distractionStartTime = 0;
+			distractionStartTick = -1;
+			onDistractionEnded(transitionTime, pendingSinceTick, lastCitizen);
 		}
+		pendingSinceTick = -1;
 	}
 
-	private void handleDistractionStateChange()
+	private NPC findCitizen(int index)
 	{
-		if (citizenDistracted && !wasDistracted)
+		List<NPC> citizens = npcIndex.getCitizens();
+		for (int i = 0; i < citizens.size(); i++)
 		{
-			onDistractionStarted();
-		}
-		else if (!citizenDistracted && wasDistracted)
-		{
-			onDistractionEnded();
+			if (citizens.get(i).getIndex() == index)
+			{
+				return citizens.get(i);
+			}
 		}
-
-		wasDistracted = citizenDistracted;
+		return null;
 	}
 
 	private void onDistractionStarted()
@@ -204,18 +386,18 @@ public class CitizenObserverModule extends PluginModuleContract
 		CitizenStatus status = new CitizenStatus(
 			client.getWorld(),
 			true,
-			System.currentTimeMillis(),
+			distractionStartTime,
 			0, // distractionEndTime - not ended yet
-			System.currentTimeMillis(),
+			serverClock.now(),
 			client.getLocalPlayer().getName()
 		);
 
 		dispatch(new CitizenStatusChanged(status, true));
 
-		if (config.autoBroadcast() && !hasBroadcastedDistraction)
+		if (config.autoBroadcast() && !citizenStates.isReported())
 		{
-			broadcastStatus(true);
-			hasBroadcastedDistraction = true;
+			broadcastStatus(true, distractionStartTime, distractionStartTick, distractedCitizen);
+			citizenStates.markReported();
 		}
 
 		if (config.notifyOnDistraction())
@@ -224,17 +406,16 @@ public class CitizenObserverModule extends PluginModuleContract
 		}
 	}
 
-	private void onDistractionEnded()
+	private void onDistractionEnded(long endTime, int endTick, NPC lastCitizen)
 	{
 		log.debug("Wealthy citizen distraction ended");
-		hasBroadcastedDistraction = false;
 
 		CitizenStatus status = new CitizenStatus(
 			client.getWorld(),
 			false,
 			0, // distractionStartTime - reset
-			System.currentTimeMillis(), // distractionEndTime - just ended
-			System.currentTimeMillis(),
+			endTime, // distractionEndTime - when the last citizen calmed down
+			serverClock.now(),
 			client.getLocalPlayer().getName()
 		);
 
@@ -242,7 +423,7 @@ public class CitizenObserverModule extends PluginModuleContract
 
 		if (config.autoBroadcast() && !hasBroadcastedEnd)
 		{
-			broadcastStatus(false);
+			broadcastStatus(false, endTime, endTick, lastCitizen);
 			hasBroadcastedEnd = true;
 		}
 
@@ -252,7 +433,11 @@ public class CitizenObserverModule extends PluginModuleContract
 		}
 	}
 
-	private void broadcastStatus(boolean distracted)
+	/**
+	 * Reports a transition with the server time it happened at, not the time it was confirmed,
+	 * along with the tick, the citizen and how confidently it was seen.
+	 */
+	private void broadcastStatus(boolean distracted, long transitionTime, int transitionTick, NPC citizen)
 	{
 		Player player = client.getLocalPlayer();
 		if (player == null)
@@ -264,24 +449,14 @@ public class CitizenObserverModule extends PluginModuleContract
 			player.getName(),
 			client.getWorld(),
 			distracted,
-			System.currentTimeMillis()
+			transitionTime,
+			transitionTick,
+			citizen == null ? -1 : citizen.getId(),
+			citizen == null ? -1 : citizen.getIndex(),
+			changeConfidence
 		);
 
-		httpService.post(payload, new Callback()
-		{
-			@Override
-			public void onFailure(Call call, IOException e)
-			{
-				log.warn("Failed to broadcast citizen status: {}", e.getMessage());
-			}
-
-			@Override
-			public void onResponse(Call call, Response response)
-			{
-				response.close();
-				log.debug("Successfully broadcast citizen status");
-			}
-		});
+		httpService.queueBroadcast(payload);
 	}
 
 	public long getDistractionDurationSeconds()
@@ -290,6 +465,6 @@ public class CitizenObserverModule extends PluginModuleContract
 		{
 			return 0;
 		}
-		return (System.currentTimeMillis() - distractionStartTime) / 1000;
+		return (serverClock.now() - distractionStartTime) / 1000;
 	}
 }
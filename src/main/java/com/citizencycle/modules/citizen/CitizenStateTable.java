@@ -0,0 +1,208 @@
+package com.citizencycle.modules.citizen;
+
+import java.util.Arrays;
+
+/**
+ * Distraction state of every tracked citizen, keyed by NPC index. Transitions are kept
+ * as game ticks and only converted to a time once they are confirmed. Stored in parallel
+ * primitive arrays since only a handful of citizens are ever in the scene at once,
+ * so a linear lookup beats hashing and nothing is boxed.
+ */
+class CitizenStateTable
+{
+	static final int NONE = -1;
+
+	private static final int INITIAL_CAPACITY = 8;
+
+	private static final byte DISTRACTED = 1;
+	// The entry's start was included in a world-level broadcast
+	private static final byte REPORTED = 2;
+
+	private int[] npcIndexes = new int[INITIAL_CAPACITY];
+	private int[] startTicks = new int[INITIAL_CAPACITY];
+	private int[] endTicks = new int[INITIAL_CAPACITY];
+	private byte[] flags = new byte[INITIAL_CAPACITY];
+	private int size = 0;
+	private int distractedCount = 0;
+	// Latest end of the citizens that have left the scene, their entries are gone
+	private int removedEndTick = NONE;
+
+	/**
+	 * Applies the observed state of one citizen.
+	 *
+	 * @return true if the citizen changed state
+	 */
+	boolean update(int npcIndex, boolean distracted, int tick)
+	{
+		int slot = slotOf(npcIndex);
+		if (slot == NONE)
+		{
+			if (!distracted)
+			{
+				// Idle citizens don't need an entry until they are distracted
+				return false;
+			}
+			slot = append(npcIndex);
+		}
+
+		boolean wasDistracted = (flags[slot] & DISTRACTED) != 0;
+		if (distracted == wasDistracted)
+		{
+			return false;
+		}
+
+		if (distracted)
+		{
+			flags[slot] = DISTRACTED;
+			startTicks[slot] = tick;
+			endTicks[slot] = NONE;
+			distractedCount++;
+		}
+		else
+		{
+			flags[slot] = 0;
+			endTicks[slot] = tick;
+			distractedCount--;
+		}
+		return true;
+	}
+
+	/**
+	 * Drops a citizen that left the scene, ending its distraction if it had one.
+	 *
+	 * @return true if a distraction was ended
+	 */
+	boolean remove(int npcIndex, int tick)
+	{
+		int slot = slotOf(npcIndex);
+		if (slot == NONE)
+		{
+			return false;
+		}
+
+		boolean ended = update(npcIndex, false, tick);
+		removedEndTick = Math.max(removedEndTick, endTicks[slot]);
+		int last = --size;
+		npcIndexes[slot] = npcIndexes[last];
+		startTicks[slot] = startTicks[last];
+		endTicks[slot] = endTicks[last];
+		flags[slot] = flags[last];
+		return ended;
+	}
+
+	void clear()
+	{
+		size = 0;
+		distractedCount = 0;
+		removedEndTick = NONE;
+	}
+
+	int getDistractedCount()
+	{
+		return distractedCount;
+	}
+
+	/**
+	 * Index of the NPC distracted the longest, or {@link #NONE}.
+	 */
+	int earliestDistracted()
+	{
+		int best = NONE;
+		for (int i = 0; i < size; i++)
+		{
+			if ((flags[i] & DISTRACTED) != 0 && (best == NONE || startTicks[i] < startTicks[best]))
+			{
+				best = i;
+			}
+		}
+		return best == NONE ? NONE : npcIndexes[best];
+	}
+
+	int getStartTick(int npcIndex)
+	{
+		int slot = slotOf(npcIndex);
+		return slot == NONE ? NONE : startTicks[slot];
+	}
+
+	/**
+	 * End of the citizen's last distraction, or {@link #NONE} while it is distracted.
+	 */
+	int getEndTick(int npcIndex)
+	{
+		int slot = slotOf(npcIndex);
+		return slot == NONE ? NONE : endTicks[slot];
+	}
+
+	/**
+	 * The most recent end among idle citizens, including ones that have since left the
+	 * scene, the moment the world became calm.
+	 */
+	int latestEndTick()
+	{
+		int best = removedEndTick;
+		for (int i = 0; i < size; i++)
+		{
+			if ((flags[i] & DISTRACTED) == 0 && endTicks[i] > best)
+			{
+				best = endTicks[i];
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Whether any current distraction has already been reported to the server.
+	 */
+	boolean isReported()
+	{
+		for (int i = 0; i < size; i++)
+		{
+			if (flags[i] == (DISTRACTED | REPORTED))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	void markReported()
+	{
+		for (int i = 0; i < size; i++)
+		{
+			if ((flags[i] & DISTRACTED) != 0)
+			{
+				flags[i] |= REPORTED;
+			}
+		}
+	}
+
+	private int slotOf(int npcIndex)
+	{
+		for (int i = 0; i < size; i++)
+		{
+			if (npcIndexes[i] == npcIndex)
+			{
+				return i;
+			}
+		}
+		return NONE;
+	}
+
+	private int append(int npcIndex)
+	{
+		if (size == npcIndexes.length)
+		{
+			int capacity = size * 2;
+			npcIndexes = Arrays.copyOf(npcIndexes, capacity);
+			startTicks = Arrays.copyOf(startTicks, capacity);
+			endTicks = Arrays.copyOf(endTicks, capacity);
+			flags = Arrays.copyOf(flags, capacity);
+		}
+
+		int slot = size++;
+		npcIndexes[slot] = npcIndex;
+		flags[slot] = 0;
+		endTicks[slot] = NONE;
+		return slot;
+	}
+}
@@ -1,7 +1,9 @@
 package com.citizencycle.modules.sidepanel;
 
+import com.citizencycle.modules.sidepanel.HopPriorityIndex.Category;
+import com.citizencycle.objects.CitizenSnapshot;
 import com.citizencycle.objects.CitizenStatus;
-import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
 import net.runelite.client.ui.ColorScheme;
 import net.runelite.client.ui.PluginPanel;
 import net.runelite.http.api.worlds.World;
@@ -10,26 +12,34 @@ import net.runelite.http.api.worlds.WorldType;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
+@Slf4j
 public class CitizenSidePanel extends PluginPanel
 {
 	private final Consumer<Integer> worldHopCallback;
+	// Server time of the data on display
+	private final LongSupplier clock;
 	private final JPanel worldListPanel;
 	private final JLabel statusLabel;
+	private final JLabel routeLabel;
 	private final JLabel errorLabel;
 
-	@Setter
-	private int currentWorld;
+	private volatile int currentWorld;
+	private volatile int playerTotalLevel = 0;
 
-	@Setter
-	private int playerTotalLevel = 0;
-
-	private List<CitizenStatus> citizenStatuses = new ArrayList<>();
+	private CitizenSnapshot snapshot = CitizenSnapshot.EMPTY;
+	// Only touched on the Swing thread
+	private final HopPriorityIndex priorityIndex = new HopPriorityIndex();
+	private final HopRoutePlanner routePlanner = new HopRoutePlanner();
+	private List<HopRoutePlanner.Step> route = Collections.emptyList();
+	// Set when anything the route depends on changed, it is also re-planned once its first step passed
+	private volatile boolean routeDirty = true;
 	private Map<Integer, World> worldMap = new java.util.HashMap<>();
 
 	// Filter toggles
@@ -43,9 +53,10 @@ public class CitizenSidePanel extends PluginPanel
 	private JToggleButton distractedBtn;
 	private JToggleButton waitingBtn;
 
-	public CitizenSidePanel(Consumer<Integer> worldHopCallback)
+	public CitizenSidePanel(Consumer<Integer> worldHopCallback, LongSupplier clock)
 	{
 		this.worldHopCallback = worldHopCallback;
+		this.clock = clock;
 
 		setLayout(new BorderLayout());
 		setBorder(new EmptyBorder(10, 10, 10, 10));
@@ -66,6 +77,11 @@ public class CitizenSidePanel extends PluginPanel
 		statusLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
 		headerPanel.add(statusLabel);
 
+		routeLabel = new JLabel("");
+		routeLabel.setForeground(new Color(255, 200, 0));
+		routeLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
+		headerPanel.add(routeLabel);
+
 		errorLabel = new JLabel("");
 		errorLabel.setForeground(Color.RED);
 		errorLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
@@ -150,23 +166,18 @@ public class CitizenSidePanel extends PluginPanel
 		}
 	}
 
-	private boolean shouldShowStatus(CitizenStatus status)
+	private boolean shouldShowStatus(Category category)
 	{
-		if (status.isInOptimalHopWindow())
-		{
-			return showHopNow;
-		}
-		else if (status.isApproaching())
-		{
-			return showApproaching;
-		}
-		else if (status.isDistracted())
+		switch (category)
 		{
-			return showDistracted;
-		}
-		else
-		{
-			return showWaiting;
+			case HOP_NOW:
+				return showHopNow;
+			case APPROACHING:
+				return showApproaching;
+			case DISTRACTED:
+				return showDistracted;
+			default:
+				return showWaiting;
 		}
 	}
 
@@ -177,6 +188,31 @@ public class CitizenSidePanel extends PluginPanel
 		{
 			this.worldMap.put(world.getId(), world);
 		}
+		routeDirty = true;
+	}
+
+	public void setCurrentWorld(int currentWorld)
+	{
+		this.currentWorld = currentWorld;
+		routeDirty = true;
+	}
+
+	public void setPlayerTotalLevel(int playerTotalLevel)
+	{
+		this.playerTotalLevel = playerTotalLevel;
+		routeDirty = true;
+	}
+
+	public void setHopMillis(long hopMillis)
+	{
+		routePlanner.setHopMillis(hopMillis);
+		routeDirty = true;
+	}
+
+	public void setHopCooldownMillis(long hopCooldownMillis)
+	{
+		routePlanner.setHopCooldownMillis(hopCooldownMillis);
+		routeDirty = true;
 	}
 
 	/**
@@ -265,9 +301,17 @@ public class CitizenSidePanel extends PluginPanel
 		return 0;
 	}
 
-	public void updateCitizenData(List<CitizenStatus> statuses)
+	public void updateCitizenData(CitizenSnapshot snapshot)
 	{
-		this.citizenStatuses = statuses;
+		if (!snapshot.isNewerThan(this.snapshot.getVersion()))
+		{
+			// Events can be handled out of order, never go back to older data
+			return;
+		}
+
+		this.snapshot = snapshot;
+		priorityIndex.update(snapshot, clock.getAsLong());
+		routeDirty = true;
 		setErrorMessage("");
 	}
 
@@ -276,92 +320,135 @@ public class CitizenSidePanel extends PluginPanel
 		errorLabel.setText(message);
 	}
 
+	/**
+	 * Shows per-endpoint latency and health when hovering the status line.
+	 */
+	public void setEndpointReport(String report)
+	{
+		statusLabel.setToolTipText(report.isEmpty() ? null : "<html>" + report.replace("\n", "<br>") + "</html>");
+	}
+
 	public void rebuild()
 	{
 		worldListPanel.removeAll();
 
-		// Filter to only safe worlds and sort by priority
-		List<CitizenStatus> sortedStatuses = new ArrayList<>();
-		for (CitizenStatus status : citizenStatuses)
-		{
-			if (isWorldSafe(status.getWorld()))
-			{
-				sortedStatuses.add(status);
-			}
-		}
-		// Sort by priority score (lower = higher priority = closer to next distraction)
-		sortedStatuses.sort((a, b) -> Integer.compare(a.getPriorityScore(), b.getPriorityScore()));
+		// One instant for the whole render so every world is judged at the same time
+		long now = clock.getAsLong();
+		priorityIndex.advance(now);
 
+		int trackedCount = 0;
 		int optimalCount = 0;
 		int approachingCount = 0;
-		for (CitizenStatus status : sortedStatuses)
+		for (HopPriorityIndex.Entry entry : priorityIndex.entries())
 		{
-			if (!status.isStale())
+			// Already in priority order, only the safe worlds are shown
+			if (!isWorldSafe(entry.getStatus().getWorld()))
 			{
-				if (status.isInOptimalHopWindow())
-				{
-					optimalCount++;
-				}
-				else if (status.isApproaching())
-				{
-					approachingCount++;
-				}
+				continue;
 			}
+
+			trackedCount++;
+			if (entry.getCategory() == Category.HOP_NOW)
+			{
+				optimalCount++;
+			}
+			else if (entry.getCategory() == Category.APPROACHING)
+			{
+				approachingCount++;
+			}
+
+			if (entry.getCategory() == Category.STALE || !shouldShowStatus(entry.getCategory()))
+			{
+				continue;
+			}
+
+			JPanel worldPanel = createWorldPanel(entry.getStatus(), entry.getCategory(), now);
+			worldListPanel.add(worldPanel);
+			worldListPanel.add(Box.createRigidArea(new Dimension(0, 5)));
 		}
 
+		String statusText;
 		if (optimalCount > 0)
 		{
-			statusLabel.setText(optimalCount + " world(s) ready to hop!");
+			statusText = optimalCount + " world(s) ready to hop!";
 		}
 		else if (approachingCount > 0)
 		{
-			statusLabel.setText(approachingCount + " world(s) approaching");
+			statusText = approachingCount + " world(s) approaching";
 		}
 		else
 		{
-			statusLabel.setText("Tracking " + sortedStatuses.size() + " world(s)");
+			statusText = "Tracking " + trackedCount + " world(s)";
 		}
 
-		for (CitizenStatus status : sortedStatuses)
+		// Restored from the last session, the server has not answered yet
+		statusLabel.setText(snapshot.isCached() ? statusText + " (cached)" : statusText);
+
+		updateRoute(now);
+
+		worldListPanel.revalidate();
+		worldListPanel.repaint();
+	}
+
+	private void updateRoute(long now)
+	{
+		if (routeDirty || (!route.isEmpty() && route.get(0).getCatchAt() < now))
 		{
-			if (status.isStale())
-			{
-				continue;
-			}
+			routeDirty = false;
+			long start = System.nanoTime();
+			route = routePlanner.plan(priorityIndex.entries(), this::isWorldSafe, currentWorld, now);
+			log.debug("Planned {} step hop route in {}us", route.size(), (System.nanoTime() - start) / 1000);
+		}
 
-			// Apply filter toggles
-			if (!shouldShowStatus(status))
-			{
-				continue;
-			}
+		if (route.isEmpty())
+		{
+			routeLabel.setText("");
+			routeLabel.setToolTipText(null);
+			return;
+		}
 
-			JPanel worldPanel = createWorldPanel(status);
-			worldListPanel.add(worldPanel);
-			worldListPanel.add(Box.createRigidArea(new Dimension(0, 5)));
+		HopRoutePlanner.Step step = route.get(0);
+		long secondsUntilDepart = Math.max(0, (step.getDepartAt() - now) / 1000);
+		if (step.getWorld() == currentWorld)
+		{
+			routeLabel.setText("Next: stay on W" + step.getWorld() + " (~" + Math.max(0, (step.getCatchAt() - now) / 1000) + "s)");
+		}
+		else if (secondsUntilDepart == 0)
+		{
+			routeLabel.setText("Next: hop to W" + step.getWorld() + " now");
+		}
+		else
+		{
+			routeLabel.setText("Next: hop to W" + step.getWorld() + " in " + secondsUntilDepart + "s");
 		}
 
-		worldListPanel.revalidate();
-		worldListPanel.repaint();
+		StringBuilder tooltip = new StringBuilder("<html>Planned route, " + route.size() + " distraction(s) in the next 5 minutes:");
+		for (HopRoutePlanner.Step planned : route)
+		{
+			tooltip.append("<br>W").append(planned.getWorld())
+				.append(" at +").append(Math.max(0, (planned.getCatchAt() - now) / 1000)).append('s');
+		}
+		routeLabel.setToolTipText(tooltip.append("</html>").toString());
 	}
 
-	private JPanel createWorldPanel(CitizenStatus status)
+	private JPanel createWorldPanel(CitizenStatus status, Category category, long now)
 	{
 		JPanel panel = new JPanel(new BorderLayout());
 		
 		// Color based on state: optimal window = gold, approaching = yellow, distracted = green, other = gray
 		Color bgColor;
 		Color borderColor;
-		if (status.isInOptimalHopWindow())
+		if (category == Category.HOP_NOW)
 		{
 			bgColor = new Color(100, 80, 0); // Gold/orange for optimal
 			borderColor = new Color(255, 200, 0);
 		}
-		else if (status.isApproaching())
+		else if (category == Category.APPROACHING)
 		{
 			bgColor = new Color(80, 80, 0); // Yellow for approaching
 			borderColor = Color.YELLOW;
 		}
-		else if (status.isDistracted())
+		else if (category == Category.DISTRACTED)
 		{
 			bgColor = new Color(0, 80, 0); // Green for currently distracted
 			borderColor = Color.GREEN;
@@ -388,27 +475,27 @@ public class CitizenSidePanel extends PluginPanel
 
 		String statusText;
 		Color statusColor;
-		if (status.isInOptimalHopWindow())
+		if (category == Category.HOP_NOW)
 		{
-			long secondsUntil = status.getSecondsUntilNextDistraction();
+			long secondsUntil = status.getSecondsUntilNextDistraction(now);
 			statusText = "HOP NOW! ~" + secondsUntil + "s";
 			statusColor = new Color(255, 200, 0);
 		}
-		else if (status.isApproaching())
+		else if (category == Category.APPROACHING)
 		{
-			long secondsUntil = status.getSecondsUntilNextDistraction();
+			long secondsUntil = status.getSecondsUntilNextDistraction(now);
 			statusText = "Approaching (~" + secondsUntil + "s)";
 			statusColor = Color.YELLOW;
 		}
-		else if (status.isDistracted())
+		else if (category == Category.DISTRACTED)
 		{
-			long duration = status.getDistractionDurationSeconds();
+			long duration = status.getDistractionDurationSeconds(now);
 			statusText = "DISTRACTED (" + duration + "s)";
 			statusColor = Color.GREEN;
 		}
-		else if (status.getSecondsSinceDistractionEnded() >= 0)
+		else if (category == Category.WAITING)
 		{
-			long secondsUntil = status.getSecondsUntilNextDistraction();
+			long secondsUntil = status.getSecondsUntilNextDistraction(now);
 			statusText = "Waiting (~" + secondsUntil + "s)";
 			statusColor = Color.GRAY;
 		}
@@ -0,0 +1,174 @@
+package com.citizencycle.modules.sidepanel;
+
+import com.citizencycle.objects.CitizenSnapshot;
+import com.citizencycle.objects.CitizenStatus;
+import com.citizencycle.objects.WorldStatusTable;
+import lombok.Value;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+/**
+ * Worlds in hop priority order. Time passes equally for every world, so the order only
+ * changes when new data arrives or a world crosses into another window; worlds are
+ * re-sorted on data changes and when a timer for their next window boundary fires,
+ * instead of sorting the whole list every second.
+ */
+class HopPriorityIndex
+{
+	enum Category
+	{
+		HOP_NOW,
+		APPROACHING,
+		DISTRACTED,
+		WAITING,
+		NO_DATA,
+		STALE
+	}
+
+	@Value
+	static class Entry
+	{
+		CitizenStatus status;
+		// Table version of the status, changes whenever the world is updated
+		int version;
+		Category category;
+		// Predicted start of the next distraction, orders worlds within a category
+		long nextDistraction;
+		// When the category changes next, Long.MAX_VALUE if only new data can change it
+		long boundary;
+	}
+
+	private static final long NEVER = Long.MAX_VALUE;
+	private static final long STALE_AFTER_MS = (CitizenStatus.DISTRACTION_CYCLE_SECONDS * 2 + 1) * 1000L;
+
+	private static final Comparator<Entry> PRIORITY = Comparator
+		.comparingInt((Entry entry) -> entry.getCategory().ordinal())
+		.thenComparingLong(Entry::getNextDistraction)
+		.thenComparingInt(entry -> entry.getStatus().getWorld());
+
+	private final TreeSet<Entry> ordered = new TreeSet<>(PRIORITY);
+	private final Map<Integer, Entry> byWorld = new HashMap<>();
+	// May hold replaced entries, they are skipped when they come up
+	private final PriorityQueue<Entry> boundaries = new PriorityQueue<>(Comparator.comparingLong(Entry::getBoundary));
+
+	/**
+	 * Brings the index in line with a new snapshot. Only worlds whose table version
+	 * changed are materialized and re-sorted.
+	 */
+	void update(CitizenSnapshot snapshot, long now)
+	{
+		WorldStatusTable table = snapshot.getTable();
+		Iterator<Entry> iterator = byWorld.values().iterator();
+		while (iterator.hasNext())
+		{
+			Entry entry = iterator.next();
+			int slot = entry.getStatus().getWorld() - WorldStatusTable.WORLD_BASE;
+			if (slot >= table.capacity() || !table.isPresent(slot))
+			{
+				ordered.remove(entry);
+				iterator.remove();
+			}
+		}
+
+		for (int slot = 0; slot < table.capacity(); slot++)
+		{
+			if (!table.isPresent(slot))
+			{
+				continue;
+			}
+
+			int world = WorldStatusTable.worldAt(slot);
+			Entry entry = byWorld.get(world);
+			if (entry == null || entry.getVersion() != table.getVersion(slot))
+			{
+				put(table.get(world), table.getVersion(slot), now);
+			}
+		}
+	}
+
+	/**
+	 * Moves every world whose window boundary has passed.
+	 */
+	void advance(long now)
+	{
+		Entry next;
+		while ((next = boundaries.peek()) != null && next.getBoundary() <= now)
+		{
+			boundaries.poll();
+			if (byWorld.get(next.getStatus().getWorld()) == next)
+			{
+				put(next.getStatus(), next.getVersion(), now);
+			}
+		}
+	}
+
+	/**
+	 * Entries in priority order, valid as of the last {@link #advance}.
+	 */
+	Collection<Entry> entries()
+	{
+		return Collections.unmodifiableSet(ordered);
+	}
+
+	private void put(CitizenStatus status, int version, long now)
+	{
+		Entry previous = byWorld.get(status.getWorld());
+		if (previous != null)
+		{
+			ordered.remove(previous);
+		}
+
+		Entry entry = classify(status, version, now);
+		ordered.add(entry);
+		byWorld.put(status.getWorld(), entry);
+		if (entry.getBoundary() != NEVER)
+		{
+			boundaries.add(entry);
+		}
+	}
+
+	/**
+	 * Same windows as {@link CitizenStatus#isInOptimalHopWindow(long)} and friends, turned
+	 * into the instants they open at.
+	 */
+	private static Entry classify(CitizenStatus status, int version, long now)
+	{
+		if (status.isStale(now))
+		{
+			return new Entry(status, version, Category.STALE, NEVER, NEVER);
+		}
+
+		long staleAt = status.getLastUpdateTime() + STALE_AFTER_MS;
+		if (status.isDistracted())
+		{
+			return new Entry(status, version, Category.DISTRACTED, status.getDistractionStartTime(), staleAt);
+		}
+
+		long end = status.getDistractionEndTime();
+		if (end == 0)
+		{
+			return new Entry(status, version, Category.NO_DATA, NEVER, staleAt);
+		}
+
+		long nextDistraction = end + Math.round(status.getCycleSeconds()) * 1000;
+		long optimalAt = end + (long) Math.ceil(status.getOptimalWindowStartSeconds()) * 1000;
+		long approachingAt = end + (long) Math.ceil(status.getApproachingWindowStartSeconds()) * 1000;
+
+		if (now >= optimalAt)
+		{
+			return new Entry(status, version, Category.HOP_NOW, nextDistraction, staleAt);
+		}
+		if (now >= approachingAt)
+		{
+			return new Entry(status, version, Category.APPROACHING, nextDistraction, Math.min(optimalAt, staleAt));
+		}
+		return new Entry(status, version, Category.WAITING, nextDistraction, Math.min(approachingAt, staleAt));
+	}
+}
@@ -0,0 +1,243 @@
+package com.citizencycle.modules.sidepanel;
+
+import com.citizencycle.objects.CitizenStatus;
+import lombok.Setter;
+import lombok.Value;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * Plans the sequence of hops that catches the most distractions over the next few
+ * minutes. Each world repeats its predicted distraction every cycle; a beam search
+ * extends the best partial routes with the worlds whose next catchable distraction
+ * frees the player up soonest, within a fixed time budget. The first few hops are always
+ * planned, however slow the machine. Consecutive hops are kept at least the game's hop
+ * cooldown apart.
+ */
+class HopRoutePlanner
+{
+	private static final long HORIZON_MS = 5 * 60 * 1000;
+	private static final long TIME_BUDGET_NANOS = 5_000_000;
+	// Hops planned before the time budget applies
+	private static final int MIN_DEPTH = 3;
+	private static final int BEAM_WIDTH = 24;
+	private static final int BRANCHING = 6;
+
+	// Until a hop has been measured
+	private static final long DEFAULT_HOP_MS = 6000;
+	// The game refuses a hop this soon after the last one
+	static final long DEFAULT_HOP_COOLDOWN_MS = 10000;
+	// Distractions last ~12-17s, arriving later than this into one leaves no time to steal
+	private static final long CATCHABLE_MS = 9000;
+	private static final long DISTRACTION_MS = 15000;
+
+	@Value
+	static class Step
+	{
+		int world;
+		// When to start hopping, and when the distraction is expected to be caught
+		long departAt;
+		long catchAt;
+	}
+
+	private static final class Node
+	{
+		final Node parent;
+		final int slot;
+		final long departAt;
+		final long catchAt;
+		final long freeAt;
+		// Departure of the last hop on this route, staying on a world keeps its parent's
+		final long hoppedAt;
+		final int catches;
+
+		Node(Node parent, int slot, long departAt, long catchAt, long freeAt, long hoppedAt, int catches)
+		{
+			this.parent = parent;
+			this.slot = slot;
+			this.departAt = departAt;
+			this.catchAt = catchAt;
+			this.freeAt = freeAt;
+			this.hoppedAt = hoppedAt;
+			this.catches = catches;
+		}
+	}
+
+	private static final Comparator<Node> BEST_FIRST = Comparator
+		.comparingInt((Node node) -> -node.catches)
+		.thenComparingLong(node -> node.freeAt);
+
+	@Setter
+	private long hopMillis = DEFAULT_HOP_MS;
+
+	@Setter
+	private long hopCooldownMillis = DEFAULT_HOP_COOLDOWN_MS;
+
+	// Candidate worlds in parallel arrays, reused between plans
+	private int[] worlds = new int[0];
+	private long[] firstStarts = new long[0];
+	private long[] periods = new long[0];
+	private int count = 0;
+
+	/**
+	 * Best route from the current world, starting now.
+	 *
+	 * @param safe         worlds the player may hop to
+	 * @param currentWorld the world the player is on, staying there costs no hop
+	 * @return the planned steps, empty if nothing is catchable within the horizon
+	 */
+	List<Step> plan(Collection<HopPriorityIndex.Entry> entries, IntPredicate safe, int currentWorld, long now)
+	{
+		loadCandidates(entries, safe);
+
+		int currentSlot = -1;
+		for (int i = 0; i < count; i++)
+		{
+			if (worlds[i] == currentWorld)
+			{
+				currentSlot = i;
+				break;
+			}
+		}
+
+		long deadline = System.nanoTime() + TIME_BUDGET_NANOS;
+		// The player's own last hop is not known, assume it has cooled down
+		Node best = new Node(null, currentSlot, now, now, now, now - hopCooldownMillis, 0);
+		List<Node> beam = Collections.singletonList(best);
+		List<Node> next = new ArrayList<>(BEAM_WIDTH * BRANCHING);
+		Node[] children = new Node[BRANCHING];
+
+		for (int depth = 0; !beam.isEmpty() && (depth < MIN_DEPTH || System.nanoTime() < deadline); depth++)
+		{
+			next.clear();
+			for (Node node : beam)
+			{
+				int found = expand(node, now, children);
+				for (int i = 0; i < found; i++)
+				{
+					next.add(children[i]);
+				}
+			}
+
+			if (next.isEmpty())
+			{
+				break;
+			}
+
+			next.sort(BEST_FIRST);
+			beam = new ArrayList<>(next.subList(0, Math.min(BEAM_WIDTH, next.size())));
+			if (BEST_FIRST.compare(beam.get(0), best) < 0)
+			{
+				best = beam.get(0);
+			}
+		}
+
+		List<Step> steps = new ArrayList<>();
+		for (Node node = best; node.parent != null; node = node.parent)
+		{
+			steps.add(new Step(worlds[node.slot], node.departAt, node.catchAt));
+		}
+		Collections.reverse(steps);
+		return steps;
+	}
+
+	/**
+	 * Fills {@code children} with the routes extending {@code node} that free the player
+	 * up soonest, one per world.
+	 *
+	 * @return how many were found
+	 */
+	private int expand(Node node, long now, Node[] children)
+	{
+		int found = 0;
+		for (int slot = 0; slot < count; slot++)
+		{
+			boolean stay = slot == node.slot;
+			long hop = stay ? 0 : hopMillis;
+			long earliest = stay ? node.freeAt : Math.max(node.freeAt, node.hoppedAt + hopCooldownMillis);
+			long arrival = earliest + hop;
+
+			// First distraction on this world still catchable when arriving
+			long first = firstStarts[slot];
+			long period = periods[slot];
+			long start = first;
+			if (arrival - CATCHABLE_MS > first)
+			{
+				long cycles = (arrival - CATCHABLE_MS - first + period - 1) / period;
+				start = first + cycles * period;
+			}
+			if (start > now + HORIZON_MS)
+			{
+				continue;
+			}
+
+			long freeAt = start + DISTRACTION_MS;
+			if (found == BRANCHING && freeAt >= children[found - 1].freeAt)
+			{
+				continue;
+			}
+
+			// Leave just in time to arrive as it starts
+			long departAt = Math.max(earliest, start - hop);
+			Node child = new Node(node, slot, departAt, Math.max(arrival, start), freeAt,
+				stay ? node.hoppedAt : departAt, node.catches + 1);
+
+			// Insertion into the few best kept so far
+			int position = found == BRANCHING ? found - 1 : found++;
+			while (position > 0 && children[position - 1].freeAt > freeAt)
+			{
+				children[position] = children[position - 1];
+				position--;
+			}
+			children[position] = child;
+		}
+		return found;
+	}
+
+	private void loadCandidates(Collection<HopPriorityIndex.Entry> entries, IntPredicate safe)
+	{
+		if (worlds.length < entries.size())
+		{
+			worlds = new int[entries.size()];
+			firstStarts = new long[entries.size()];
+			periods = new long[entries.size()];
+		}
+
+		count = 0;
+		for (HopPriorityIndex.Entry entry : entries)
+		{
+			CitizenStatus status = entry.getStatus();
+			if (!safe.test(status.getWorld()))
+			{
+				continue;
+			}
+
+			long gap = Math.round(status.getCycleSeconds() * 1000);
+			long start;
+			switch (entry.getCategory())
+			{
+				case DISTRACTED:
+					start = status.getDistractionStartTime();
+					break;
+				case HOP_NOW:
+				case APPROACHING:
+				case WAITING:
+					start = status.getDistractionEndTime() + gap;
+					break;
+				default:
+					// No timing to plan with
+					continue;
+			}
+
+			worlds[count] = status.getWorld();
+			firstStarts[count] = start;
+			periods[count] = gap + DISTRACTION_MS;
+			count++;
+		}
+	}
+}
@@ -5,7 +5,11 @@ import com.citizencycle.CitizenCycleConfig;
 import com.citizencycle.PluginModuleContract;
 import com.citizencycle.events.CitizenDataRefreshFailed;
 import com.citizencycle.events.CitizenDataRefreshed;
+import com.citizencycle.events.HopDurationMeasured;
+import com.citizencycle.events.PluginConfigChanged;
 import com.citizencycle.events.WorldHopRequest;
+import com.citizencycle.services.HttpService;
+import com.citizencycle.services.ServerClock;
 import lombok.extern.slf4j.Slf4j;
 import net.runelite.api.Client;
 import net.runelite.api.GameState;
@@ -27,6 +31,8 @@ import java.util.List;
 @Slf4j
 public class SidePanelModule extends PluginModuleContract
 {
+	private static final int ENDPOINT_REPORT_INTERVAL_SECONDS = 10;
+
 	@Inject
 	private Client client;
 
@@ -39,6 +45,12 @@ public class SidePanelModule extends PluginModuleContract
 	@Inject
 	private CitizenCycleConfig config;
 
+	@Inject
+	private HttpService httpService;
+
+	@Inject
+	private ServerClock serverClock;
+
 	private CitizenSidePanel sidePanel;
 	private NavigationButton navButton;
 	private List<World> worldList = new ArrayList<>();
@@ -46,8 +58,9 @@ public class SidePanelModule extends PluginModuleContract
 	@Override
 	public void startUp()
 	{
-		sidePanel = new CitizenSidePanel(this::onWorldHopRequested);
+		sidePanel = new CitizenSidePanel(this::onWorldHopRequested, serverClock::now);
 		sidePanel.setCurrentWorld(client.getWorld());
+		sidePanel.setHopCooldownMillis(config.hopCooldownSeconds() * 1000L);
 
 		BufferedImage icon;
 		try
@@ -87,6 +100,12 @@ public class SidePanelModule extends PluginModuleContract
 	{
 		// Rebuild panel every second to update timers
 		SwingUtilities.invokeLater(() -> sidePanel.rebuild());
+
+		if (secondsSinceStartup % ENDPOINT_REPORT_INTERVAL_SECONDS == 0)
+		{
+			String report = httpService.getEndpointReport();
+			SwingUtilities.invokeLater(() -> sidePanel.setEndpointReport(report));
+		}
 	}
 
 	private void fetchWorldData()
@@ -141,11 +160,27 @@ public class SidePanelModule extends PluginModuleContract
 	public void onCitizenDataRefreshed(CitizenDataRefreshed event)
 	{
 		SwingUtilities.invokeLater(() -> {
-			sidePanel.updateCitizenData(event.getCitizenStatuses());
+			sidePanel.updateCitizenData(event.getSnapshot());
 			sidePanel.rebuild();
 		});
 	}
 
+	@Subscribe
+	public void onPluginConfigChanged(PluginConfigChanged event)
+	{
+		if (event.getKey().equals("hopCooldownSeconds"))
+		{
+			long cooldown = config.hopCooldownSeconds() * 1000L;
+			SwingUtilities.invokeLater(() -> sidePanel.setHopCooldownMillis(cooldown));
+		}
+	}
+
+	@Subscribe
+	public void onHopDurationMeasured(HopDurationMeasured event)
+	{
+		SwingUtilities.invokeLater(() -> sidePanel.setHopMillis(event.getAverageMillis()));
+	}
+
 	@Subscribe
 	public void onCitizenDataRefreshFailed(CitizenDataRefreshFailed event)
 	{
@@ -2,11 +2,13 @@ package com.citizencycle.modules.worldhop;
 
 import com.google.inject.Inject;
 import com.citizencycle.PluginModuleContract;
+import com.citizencycle.events.HopDurationMeasured;
 import com.citizencycle.events.WorldHopRequest;
 import lombok.extern.slf4j.Slf4j;
 import net.runelite.api.Client;
 import net.runelite.api.GameState;
 import net.runelite.api.World;
+import net.runelite.api.events.GameStateChanged;
 import net.runelite.api.events.GameTick;
 import net.runelite.api.widgets.ComponentID;
 import net.runelite.client.callback.ClientThread;
@@ -28,6 +30,12 @@ public class WorldHopModule extends PluginModuleContract
 	private Integer hopTarget;
 	private Integer hopAttempts = 0;
 
+	// Hops slower than this were interrupted or went through the login screen
+	private static final long MAX_HOP_MILLIS = 30000;
+	private static final double HOP_SMOOTHING = 0.3;
+	private long hopStartedAt = 0;
+	private double averageHopMillis = 0;
+
 	@Override
 	public void startUp()
 	{
@@ -114,6 +122,32 @@ public class WorldHopModule extends PluginModuleContract
 		}
 	}
 
+	@Subscribe
+	public void onGameStateChanged(GameStateChanged event)
+	{
+		if (event.getGameState() == GameState.HOPPING)
+		{
+			hopStartedAt = System.currentTimeMillis();
+		}
+		else if (event.getGameState() == GameState.LOGGED_IN && hopStartedAt != 0)
+		{
+			long duration = System.currentTimeMillis() - hopStartedAt;
+			hopStartedAt = 0;
+			if (duration > MAX_HOP_MILLIS)
+			{
+				return;
+			}
+
+			averageHopMillis = averageHopMillis == 0 ? duration : averageHopMillis + HOP_SMOOTHING * (duration - averageHopMillis);
+			log.debug("World hop took {}ms, {}ms on average", duration, Math.round(averageHopMillis));
+			dispatch(new HopDurationMeasured(Math.round(averageHopMillis)));
+		}
+		else if (event.getGameState() == GameState.LOGIN_SCREEN)
+		{
+			hopStartedAt = 0;
+		}
+	}
+
 	private void resetQuickHopper()
 	{
 		hopTarget = null;
@@ -11,4 +11,11 @@ public class BroadcastPayload
 	private int world;
 	private boolean distracted;
 	private long timestamp;
+	// Game tick the transition happened on, the reporter's own tick count
+	private int tick;
+	// Citizen that started or last ended the distraction, -1 if unknown
+	private int npcId;
+	private int npcIndex;
+	// How sure the reporter is of the transition and its time, 0 to 1
+	private double confidence;
 }
@@ -0,0 +1,81 @@
+package com.citizencycle.objects;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable, versioned view of every world's status. A new snapshot is published
+ * for each applied refresh, so readers never see a half-applied update and can
+ * compare versions to know whether anything changed since they last looked.
+ */
+public class CitizenSnapshot
+{
+	public static final CitizenSnapshot EMPTY = new CitizenSnapshot(0, WorldStatusTable.EMPTY);
+
+	@Getter
+	private final long version;
+
+	@Getter
+	private final WorldStatusTable table;
+
+	/**
+	 * Whether this was restored from disk and no live refresh has arrived yet.
+	 */
+	@Getter
+	private final boolean cached;
+
+	// Built on first use, most readers scan the table instead
+	private volatile List<CitizenStatus> statusList;
+
+	public CitizenSnapshot(long version, WorldStatusTable table)
+	{
+		this(version, table, false);
+	}
+
+	public CitizenSnapshot(long version, WorldStatusTable table, boolean cached)
+	{
+		this.version = version;
+		this.table = table;
+		this.cached = cached;
+	}
+
+	public CitizenStatus get(int world)
+	{
+		return table.get(world);
+	}
+
+	public boolean isEmpty()
+	{
+		return table.size() == 0;
+	}
+
+	/**
+	 * Every world's status as objects, in world order.
+	 */
+	public List<CitizenStatus> getStatusList()
+	{
+		List<CitizenStatus> list = statusList;
+		if (list == null)
+		{
+			List<CitizenStatus> built = new ArrayList<>(table.size());
+			for (int slot = 0; slot < table.capacity(); slot++)
+			{
+				if (table.isPresent(slot))
+				{
+					built.add(table.get(WorldStatusTable.worldAt(slot)));
+				}
+			}
+			list = Collections.unmodifiableList(built);
+			statusList = list;
+		}
+		return list;
+	}
+
+	public boolean isNewerThan(long otherVersion)
+	{
+		return version > otherVersion;
+	}
+}
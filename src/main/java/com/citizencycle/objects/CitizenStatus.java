@@ -1,12 +1,16 @@
 package com.citizencycle.objects;
 
+import com.citizencycle.services.ServerClock;
 import lombok.AllArgsConstructor;
-import lombok.Data;
-import lombok.NoArgsConstructor;
-
-@Data
+import lombok.Value;
+import lombok.With;
+
+/**
+ * Immutable status of one world, safe to share between the HTTP and client threads.
+ * Times are on the server's clock, see {@link ServerClock}.
+ */
+@Value
 @AllArgsConstructor
-@NoArgsConstructor
 public class CitizenStatus
 {
 	// Distraction cycle is approximately 80-85 seconds total
@@ -15,56 +19,94 @@ public class CitizenStatus
 	public static final int OPTIMAL_HOP_WINDOW_START = 58; // ~25s until distraction - HOP NOW
 	public static final int APPROACHING_WINDOW_START = 40; // ~43s until distraction - Approaching
 
-	private int world;
-	private boolean distracted;
-	private long distractionStartTime;
-	private long distractionEndTime;
-	private long lastUpdateTime;
-	private String reportedBy;
+	// How far ahead of the predicted start the windows open
+	private static final double HOP_LEAD_SECONDS = DISTRACTION_CYCLE_SECONDS - OPTIMAL_HOP_WINDOW_START;
+	private static final double APPROACH_LEAD_SECONDS = DISTRACTION_CYCLE_SECONDS - APPROACHING_WINDOW_START;
+
+	int world;
+	boolean distracted;
+	long distractionStartTime;
+	long distractionEndTime;
+	long lastUpdateTime;
+	String reportedBy;
+
+	// Learned cycle of this world, the fixed constants are used while it is null
+	@With
+	CycleEstimate cycle;
+
+	public CitizenStatus(int world, boolean distracted, long distractionStartTime, long distractionEndTime,
+		long lastUpdateTime, String reportedBy)
+	{
+		this(world, distracted, distractionStartTime, distractionEndTime, lastUpdateTime, reportedBy, null);
+	}
+
+	/**
+	 * Expected seconds from the end of a distraction to the start of the next.
+	 */
+	public double getCycleSeconds()
+	{
+		return cycle != null ? cycle.getGapSeconds() : DISTRACTION_CYCLE_SECONDS;
+	}
+
+	/**
+	 * Seconds after the last end the HOP NOW window opens. Opens earlier the less certain
+	 * the cycle estimate is, arriving early beats missing the distraction.
+	 */
+	public double getOptimalWindowStartSeconds()
+	{
+		double earliest = cycle != null ? cycle.getEarliestGapSeconds() : DISTRACTION_CYCLE_SECONDS;
+		return Math.max(0, earliest - HOP_LEAD_SECONDS);
+	}
+
+	public double getApproachingWindowStartSeconds()
+	{
+		double earliest = cycle != null ? cycle.getEarliestGapSeconds() : DISTRACTION_CYCLE_SECONDS;
+		return Math.max(0, earliest - APPROACH_LEAD_SECONDS);
+	}
 
-	public long getDistractionDurationSeconds()
+	public long getDistractionDurationSeconds(long now)
 	{
 		if (!distracted || distractionStartTime == 0)
 		{
 			return 0;
 		}
-		return (System.currentTimeMillis() - distractionStartTime) / 1000;
+		return (now - distractionStartTime) / 1000;
 	}
 
-	public long getSecondsSinceUpdate()
+	public long getSecondsSinceUpdate(long now)
 	{
 		if (lastUpdateTime == 0)
 		{
 			return Long.MAX_VALUE;
 		}
-		return (System.currentTimeMillis() - lastUpdateTime) / 1000;
+		return (now - lastUpdateTime) / 1000;
 	}
 
-	public boolean isStale()
+	public boolean isStale(long now)
 	{
 		// Data is stale if no update in 2 full cycles
-		return getSecondsSinceUpdate() > (DISTRACTION_CYCLE_SECONDS * 2);
+		return getSecondsSinceUpdate(now) > (DISTRACTION_CYCLE_SECONDS * 2);
 	}
 
 	/**
 	 * Returns seconds since the last distraction ended.
 	 * Returns -1 if currently distracted or no end time recorded.
 	 */
-	public long getSecondsSinceDistractionEnded()
+	public long getSecondsSinceDistractionEnded(long now)
 	{
 		if (distracted || distractionEndTime == 0)
 		{
 			return -1;
 		}
-		return (System.currentTimeMillis() - distractionEndTime) / 1000;
+		return (now - distractionEndTime) / 1000;
 	}
 
 	/**
 	 * Returns estimated seconds until the next distraction.
-	 * Based on ~93 second cycle from end of last distraction.
+	 * Based on the world's learned cycle from end of last distraction, ~83s until one was observed.
 	 * Returns -1 if currently distracted or no data.
 	 */
-	public long getSecondsUntilNextDistraction()
+	public long getSecondsUntilNextDistraction(long now)
 	{
 		if (distracted)
 		{
@@ -74,69 +116,70 @@ public class CitizenStatus
 		{
 			return -1; // No data
 		}
-		long secondsSinceEnd = getSecondsSinceDistractionEnded();
-		long estimate = DISTRACTION_CYCLE_SECONDS - secondsSinceEnd;
+		long secondsSinceEnd = getSecondsSinceDistractionEnded(now);
+		long estimate = Math.round(getCycleSeconds()) - secondsSinceEnd;
 		return Math.max(0, estimate);
 	}
 
 	/**
 	 * Returns true if this world is in the optimal hop window (~25s+ after distraction ended).
 	 */
-	public boolean isInOptimalHopWindow()
+	public boolean isInOptimalHopWindow(long now)
 	{
 		if (distracted)
 		{
 			return false;
 		}
-		long secondsSinceEnd = getSecondsSinceDistractionEnded();
+		long secondsSinceEnd = getSecondsSinceDistractionEnded(now);
 		if (secondsSinceEnd < 0)
 		{
 			return false;
 		}
-		return secondsSinceEnd >= OPTIMAL_HOP_WINDOW_START;
+		return secondsSinceEnd >= getOptimalWindowStartSeconds();
 	}
 
 	/**
 	 * Returns true if approaching optimal window (~40-58s after distraction ended).
 	 */
-	public boolean isApproaching()
+	public boolean isApproaching(long now)
 	{
 		if (distracted)
 		{
 			return false;
 		}
-		long secondsSinceEnd = getSecondsSinceDistractionEnded();
+		long secondsSinceEnd = getSecondsSinceDistractionEnded(now);
 		if (secondsSinceEnd < 0)
 		{
 			return false;
 		}
-		return secondsSinceEnd >= APPROACHING_WINDOW_START && secondsSinceEnd < OPTIMAL_HOP_WINDOW_START;
+		return secondsSinceEnd >= getApproachingWindowStartSeconds() && secondsSinceEnd < getOptimalWindowStartSeconds();
 	}
 
 	/**
-	 * Returns a priority score for sorting. Lower = higher priority.
+	 * Returns a priority score for sorting, against one server time so a whole list ranks
+	 * consistently. Lower = higher priority.
 	 * Priority: 1) HOP NOW (optimal window), 2) Approaching, 3) Distracted, 4) Waiting
 	 */
-	public int getPriorityScore()
+	public int getPriorityScore(long now)
 	{
-		if (isStale())
+		if (isStale(now))
 		{
 			return Integer.MAX_VALUE;
 		}
 
-		long secondsSinceEnd = getSecondsSinceDistractionEnded();
+		long secondsSinceEnd = getSecondsSinceDistractionEnded(now);
 
 		// In optimal window - highest priority (HOP NOW)
-		if (isInOptimalHopWindow())
+		if (isInOptimalHopWindow(now))
 		{
 			// Within window, prioritize those who've been waiting longer
 			return (int) (100 - secondsSinceEnd);
 		}
 
 		// Approaching window - second priority
-		if (isApproaching())
+		if (isApproaching(now))
 		{
-			return 200 + (int) (OPTIMAL_HOP_WINDOW_START - secondsSinceEnd);
+			return 200 + (int) (getOptimalWindowStartSeconds() - secondsSinceEnd);
 		}
 
 		// Currently distracted - third priority
@@ -148,7 +191,7 @@ public class CitizenStatus
 		// Waiting (recently ended, 0-40s) - lowest priority
 		if (secondsSinceEnd >= 0)
 		{
-			return 400 + (int) (APPROACHING_WINDOW_START - secondsSinceEnd);
+			return 400 + (int) (getApproachingWindowStartSeconds() - secondsSinceEnd);
 		}
 
 		return Integer.MAX_VALUE - 1; // No data
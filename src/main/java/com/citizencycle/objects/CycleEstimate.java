@@ -0,0 +1,23 @@
+package com.citizencycle.objects;
+
+import lombok.Value;
+
+/**
+ * Learned gap between the end of one distraction and the start of the next on a world.
+ */
+@Value
+public class CycleEstimate
+{
+	double gapSeconds;
+	// One standard deviation of the observed gaps
+	double spreadSeconds;
+	int samples;
+
+	/**
+	 * Earliest the next distraction is likely to start, measured from the end of the last one.
+	 */
+	public double getEarliestGapSeconds()
+	{
+		return Math.max(0, gapSeconds - spreadSeconds);
+	}
+}
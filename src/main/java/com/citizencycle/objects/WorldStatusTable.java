@@ -0,0 +1,369 @@
+package com.citizencycle.objects;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Status of every world in dense primitive arrays indexed by {@code world - WORLD_BASE},
+ * with reporter names interned to ids. Never modified once built, changes go through a
+ * {@link Builder} that copies the arrays. The window instants are precomputed per world
+ * so scans over all worlds are plain loops over primitive arrays.
+ */
+public final class WorldStatusTable
+{
+	public static final int WORLD_BASE = 300;
+	private static final int INITIAL_CAPACITY = 320;
+
+	// A pool holding this many more names than there are worlds is rebuilt from the live ones
+	private static final int POOL_SLACK = 64;
+
+	private static final byte PRESENT = 1;
+	private static final byte DISTRACTED = 2;
+
+	public static final WorldStatusTable EMPTY = new Builder(new WorldStatusTable(INITIAL_CAPACITY, new ReporterPool(), 0), true).build();
+
+	private final byte[] flags;
+	private final long[] startTimes;
+	private final long[] endTimes;
+	private final long[] updateTimes;
+	// Instants the HOP NOW and approaching windows open and the status goes stale
+	private final long[] optimalAt;
+	private final long[] approachingAt;
+	private final long[] staleAt;
+	private final int[] reporters;
+	// Change number of each world's last update, lets readers spot changed worlds cheaply
+	private final int[] versions;
+	private final CycleEstimate[] cycles;
+	private final ReporterPool reporterPool;
+	private final int changeCount;
+	private final int size;
+
+	private WorldStatusTable(int capacity, ReporterPool reporterPool, int changeCount)
+	{
+		this(new byte[capacity], new long[capacity], new long[capacity], new long[capacity], new long[capacity],
+			new long[capacity], new long[capacity], new int[capacity], new int[capacity], new CycleEstimate[capacity],
+			reporterPool, changeCount, 0);
+	}
+
+	private WorldStatusTable(byte[] flags, long[] startTimes, long[] endTimes, long[] updateTimes, long[] optimalAt,
+		long[] approachingAt, long[] staleAt, int[] reporters, int[] versions, CycleEstimate[] cycles,
+		ReporterPool reporterPool, int changeCount, int size)
+	{
+		this.flags = flags;
+		this.startTimes = startTimes;
+		this.endTimes = endTimes;
+		this.updateTimes = updateTimes;
+		this.optimalAt = optimalAt;
+		this.approachingAt = approachingAt;
+		this.staleAt = staleAt;
+		this.reporters = reporters;
+		this.versions = versions;
+		this.cycles = cycles;
+		this.reporterPool = reporterPool;
+		this.changeCount = changeCount;
+		this.size = size;
+	}
+
+	/**
+	 * A builder starting from this table, or from an empty one when {@code clear} is set.
+	 */
+	public Builder toBuilder(boolean clear)
+	{
+		return new Builder(this, clear);
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public int capacity()
+	{
+		return flags.length;
+	}
+
+	public boolean isPresent(int slot)
+	{
+		return (flags[slot] & PRESENT) != 0;
+	}
+
+	public int getVersion(int slot)
+	{
+		return versions[slot];
+	}
+
+	public static int worldAt(int slot)
+	{
+		return slot + WORLD_BASE;
+	}
+
+	/**
+	 * The status of a world as an object, built on demand.
+	 */
+	public CitizenStatus get(int world)
+	{
+		int slot = world - WORLD_BASE;
+		if (slot < 0 || slot >= flags.length || (flags[slot] & PRESENT) == 0)
+		{
+			return null;
+		}
+
+		return new CitizenStatus(world, (flags[slot] & DISTRACTED) != 0, startTimes[slot], endTimes[slot],
+			updateTimes[slot], reporterPool.name(reporters[slot]), cycles[slot]);
+	}
+
+	/**
+	 * Whether any world is approaching or in its HOP NOW window.
+	 */
+	public boolean anyWindowOpen(long now)
+	{
+		for (int slot = 0; slot < flags.length; slot++)
+		{
+			if (flags[slot] == PRESENT && endTimes[slot] != 0 && now >= approachingAt[slot] && now < staleAt[slot])
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Number of worlds currently distracted and not stale, their ids written to {@code out}
+	 * if it is not null.
+	 */
+	public int distractedWorlds(long now, int[] out)
+	{
+		int found = 0;
+		for (int slot = 0; slot < flags.length; slot++)
+		{
+			if (flags[slot] == (PRESENT | DISTRACTED) && now < staleAt[slot])
+			{
+				if (out != null && found < out.length)
+				{
+					out[found] = slot + WORLD_BASE;
+				}
+				found++;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Approximate heap size of the table's arrays and reporter pool, for diagnostics.
+	 */
+	public long footprintBytes()
+	{
+		int capacity = flags.length;
+		// flags, 6 long arrays, 2 int arrays, a reference array with 4 byte compressed oops
+		return capacity * (1L + 6 * 8 + 2 * 4 + 4) + 10 * 16 + reporterPool.footprintBytes();
+	}
+
+	int reporterCount()
+	{
+		return reporterPool.size();
+	}
+
+	/**
+	 * Copies a table and applies changes to the copy.
+	 */
+	public static final class Builder
+	{
+		private byte[] flags;
+		private long[] startTimes;
+		private long[] endTimes;
+		private long[] updateTimes;
+		private long[] optimalAt;
+		private long[] approachingAt;
+		private long[] staleAt;
+		private int[] reporters;
+		private int[] versions;
+		private CycleEstimate[] cycles;
+		private ReporterPool reporterPool;
+		private int changeCount;
+		private int size;
+
+		private Builder(WorldStatusTable table, boolean clear)
+		{
+			int capacity = table.flags.length;
+			// Versions keep counting up across clears so readers never mistake a world for unchanged
+			changeCount = table.changeCount;
+			if (clear)
+			{
+				// Nothing refers to the old names any more, start a pool of its own
+				reporterPool = new ReporterPool();
+				flags = new byte[capacity];
+				startTimes = new long[capacity];
+				endTimes = new long[capacity];
+				updateTimes = new long[capacity];
+				optimalAt = new long[capacity];
+				approachingAt = new long[capacity];
+				staleAt = new long[capacity];
+				reporters = new int[capacity];
+				versions = new int[capacity];
+				cycles = new CycleEstimate[capacity];
+				size = 0;
+			}
+			else
+			{
+				flags = table.flags.clone();
+				startTimes = table.startTimes.clone();
+				endTimes = table.endTimes.clone();
+				updateTimes = table.updateTimes.clone();
+				optimalAt = table.optimalAt.clone();
+				approachingAt = table.approachingAt.clone();
+				staleAt = table.staleAt.clone();
+				reporters = table.reporters.clone();
+				versions = table.versions.clone();
+				cycles = table.cycles.clone();
+				reporterPool = table.reporterPool;
+				size = table.size;
+			}
+		}
+
+		/**
+		 * Adds or replaces a world's status. Worlds below {@link #WORLD_BASE} do not exist
+		 * and are ignored.
+		 *
+		 * @return false if the world was ignored
+		 */
+		public boolean put(CitizenStatus status)
+		{
+			int slot = status.getWorld() - WORLD_BASE;
+			if (slot < 0)
+			{
+				return false;
+			}
+			if (slot >= flags.length)
+			{
+				grow(slot + 1);
+			}
+
+			if ((flags[slot] & PRESENT) == 0)
+			{
+				size++;
+			}
+
+			long end = status.getDistractionEndTime();
+			flags[slot] = status.isDistracted() ? PRESENT | DISTRACTED : PRESENT;
+			startTimes[slot] = status.getDistractionStartTime();
+			endTimes[slot] = end;
+			updateTimes[slot] = status.getLastUpdateTime();
+			optimalAt[slot] = end + (long) Math.ceil(status.getOptimalWindowStartSeconds()) * 1000;
+			approachingAt[slot] = end + (long) Math.ceil(status.getApproachingWindowStartSeconds()) * 1000;
+			// Same rule as CitizenStatus.isStale, whole seconds past two cycles
+			staleAt[slot] = status.getLastUpdateTime() == 0 ? 0
+				: status.getLastUpdateTime() + (CitizenStatus.DISTRACTION_CYCLE_SECONDS * 2 + 1) * 1000L;
+			reporters[slot] = reporterPool.intern(status.getReportedBy());
+			versions[slot] = ++changeCount;
+			cycles[slot] = status.getCycle();
+			return true;
+		}
+
+		public void remove(int world)
+		{
+			int slot = world - WORLD_BASE;
+			if (slot < 0 || slot >= flags.length || (flags[slot] & PRESENT) == 0)
+			{
+				return;
+			}
+
+			flags[slot] = 0;
+			cycles[slot] = null;
+			versions[slot] = ++changeCount;
+			size--;
+		}
+
+		public WorldStatusTable build()
+		{
+			if (reporterPool.size() > size + POOL_SLACK)
+			{
+				compactReporters();
+			}
+			return new WorldStatusTable(flags, startTimes, endTimes, updateTimes, optimalAt, approachingAt, staleAt,
+				reporters, versions, cycles, reporterPool, changeCount, size);
+		}
+
+		/**
+		 * Moves the names still in use to a new pool. Tables built earlier keep the old one,
+		 * so their ids stay valid.
+		 */
+		private void compactReporters()
+		{
+			ReporterPool live = new ReporterPool();
+			for (int slot = 0; slot < flags.length; slot++)
+			{
+				reporters[slot] = (flags[slot] & PRESENT) == 0 ? -1 : live.intern(reporterPool.name(reporters[slot]));
+			}
+			reporterPool = live;
+		}
+
+		private void grow(int minimum)
+		{
+			int capacity = Math.max(minimum, flags.length * 2);
+			flags = Arrays.copyOf(flags, capacity);
+			startTimes = Arrays.copyOf(startTimes, capacity);
+			endTimes = Arrays.copyOf(endTimes, capacity);
+			updateTimes = Arrays.copyOf(updateTimes, capacity);
+			optimalAt = Arrays.copyOf(optimalAt, capacity);
+			approachingAt = Arrays.copyOf(approachingAt, capacity);
+			staleAt = Arrays.copyOf(staleAt, capacity);
+			reporters = Arrays.copyOf(reporters, capacity);
+			versions = Arrays.copyOf(versions, capacity);
+			cycles = Arrays.copyOf(cycles, capacity);
+		}
+	}
+
+	/**
+	 * Reporter names interned to small ids, shared by the tables derived from one another
+	 * until a clear or a compaction starts a new pool. Append-only, so an id handed out stays
+	 * valid for any table that holds it.
+	 */
+	private static final class ReporterPool
+	{
+		private final Map<String, Integer> ids = new HashMap<>();
+		private volatile String[] names = new String[16];
+		private int count = 0;
+
+		synchronized int intern(String name)
+		{
+			if (name == null)
+			{
+				return -1;
+			}
+
+			Integer id = ids.get(name);
+			if (id != null)
+			{
+				return id;
+			}
+
+			if (count == names.length)
+			{
+				names = Arrays.copyOf(names, count * 2);
+			}
+			String[] current = names;
+			current[count] = name;
+			// Republish so readers on other threads see the new entry
+			names = current;
+			ids.put(name, count);
+			return count++;
+		}
+
+		String name(int id)
+		{
+			return id < 0 ? null : names[id];
+		}
+
+		synchronized int size()
+		{
+			return count;
+		}
+
+		synchronized long footprintBytes()
+		{
+			// Name array plus a map entry, boxed id and string per name, the strings taken as 16 chars
+			return names.length * 4L + count * (32L + 16 + 56) + 64;
+		}
+	}
+}
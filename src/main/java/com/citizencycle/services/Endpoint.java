@@ -0,0 +1,177 @@
+package com.citizencycle.services;
+
+import lombok.Getter;
+import okhttp3.HttpUrl;
+
+/**
+ * One crowdsourcing server, with a latency histogram, a smoothed success rate, a circuit
+ * breaker that stops traffic to it for a while after repeated failures, and the offset of
+ * its clock, see {@link ServerClock}.
+ */
+public class Endpoint
+{
+	// Upper bounds of the latency buckets, the last one catches everything slower
+	private static final long[] BUCKET_BOUNDS_MS = {25, 50, 100, 200, 400, 800, 1600, 3200, 6400, Long.MAX_VALUE};
+	// Halve the histogram once it holds this many samples so it follows recent behaviour
+	private static final int HISTOGRAM_DECAY_SAMPLES = 512;
+	private static final double SUCCESS_RATE_ALPHA = 0.2;
+	private static final int FAILURES_TO_OPEN = 3;
+	private static final long BASE_OPEN_MS = 5_000;
+	private static final long MAX_OPEN_MS = 300_000;
+	private static final double CLOCK_SMOOTHING = 0.25;
+
+	@Getter
+	private final HttpUrl url;
+
+	@Getter
+	private final HttpUrl streamUrl;
+
+	private final long[] latencyBuckets = new long[BUCKET_BOUNDS_MS.length];
+	private long samples = 0;
+	private double successRate = 1.0;
+	private int consecutiveFailures = 0;
+	private int trips = 0;
+	private long openUntil = 0;
+	private long clockOffsetMillis = 0;
+	private boolean clockSynced = false;
+
+	Endpoint(HttpUrl url)
+	{
+		this.url = url;
+		this.streamUrl = url.newBuilder().addPathSegment("stream").build();
+	}
+
+	synchronized void recordSuccess(long latencyMs)
+	{
+		recordLatency(latencyMs);
+		successRate += SUCCESS_RATE_ALPHA * (1 - successRate);
+		consecutiveFailures = 0;
+		trips = 0;
+		openUntil = 0;
+	}
+
+	synchronized void recordFailure(long latencyMs, long now)
+	{
+		recordLatency(latencyMs);
+		successRate -= SUCCESS_RATE_ALPHA * successRate;
+		if (++consecutiveFailures >= FAILURES_TO_OPEN)
+		{
+			openUntil = now + Math.min(MAX_OPEN_MS, BASE_OPEN_MS << Math.min(trips, 6));
+			trips++;
+		}
+	}
+
+	/**
+	 * False while the circuit is open. Once the open period passes requests are let
+	 * through again and the next result either closes or re-opens it.
+	 */
+	synchronized boolean isAvailable(long now)
+	{
+		return now >= openUntil;
+	}
+
+	synchronized long getOpenUntil()
+	{
+		return openUntil;
+	}
+
+	/**
+	 * Folds one offset sample into the clock estimate.
+	 *
+	 * @return true if it was the first
+	 */
+	synchronized boolean recordClockSample(long sample)
+	{
+		if (!clockSynced)
+		{
+			clockOffsetMillis = sample;
+			clockSynced = true;
+			return true;
+		}
+		clockOffsetMillis = Math.round(clockOffsetMillis + CLOCK_SMOOTHING * (sample - clockOffsetMillis));
+		return false;
+	}
+
+	public synchronized long getClockOffsetMillis()
+	{
+		return clockOffsetMillis;
+	}
+
+	public synchronized boolean isClockSynced()
+	{
+		return clockSynced;
+	}
+
+	/**
+	 * Upper bound of the bucket holding the given percentile, or -1 without samples.
+	 */
+	public synchronized long percentileMillis(double percentile)
+	{
+		long total = 0;
+		for (long count : latencyBuckets)
+		{
+			total += count;
+		}
+
+		if (total == 0)
+		{
+			return -1;
+		}
+
+		long rank = (long) Math.ceil(percentile * total);
+		long seen = 0;
+		for (int i = 0; i < latencyBuckets.length; i++)
+		{
+			seen += latencyBuckets[i];
+			if (seen >= rank)
+			{
+				return BUCKET_BOUNDS_MS[i] == Long.MAX_VALUE ? BUCKET_BOUNDS_MS[i - 1] * 2 : BUCKET_BOUNDS_MS[i];
+			}
+		}
+		return BUCKET_BOUNDS_MS[BUCKET_BOUNDS_MS.length - 2] * 2;
+	}
+
+	/**
+	 * Higher is healthier: the smoothed success rate over the median latency.
+	 */
+	synchronized double healthScore()
+	{
+		long median = percentileMillis(0.5);
+		return successRate * 1000.0 / ((median < 0 ? 200 : median) + 50);
+	}
+
+	/**
+	 * One line summary, e.g. {@code host: p50 100ms p90 400ms p99 800ms, 98% ok (123 samples)}.
+	 */
+	public synchronized String describe(long now)
+	{
+		return String.format("%s: p50 %dms p90 %dms p99 %dms, %d%% ok (%d samples)%s",
+			url.host(),
+			percentileMillis(0.5), percentileMillis(0.9), percentileMillis(0.99),
+			Math.round(successRate * 100), samples,
+			now < openUntil ? ", circuit open" : "");
+	}
+
+	private void recordLatency(long latencyMs)
+	{
+		if (samples >= HISTOGRAM_DECAY_SAMPLES)
+		{
+			samples = 0;
+			for (int i = 0; i < latencyBuckets.length; i++)
+			{
+				latencyBuckets[i] /= 2;
+				samples += latencyBuckets[i];
+			}
+		}
+
+		for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++)
+		{
+			if (latencyMs <= BUCKET_BOUNDS_MS[i])
+			{
+				latencyBuckets[i]++;
+				samples++;
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package com.citizencycle.services;
+
+import okhttp3.HttpUrl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The configured crowdsourcing servers, ranked by health. The first configured
+ * endpoint wins ties so a healthy primary keeps its traffic.
+ */
+class EndpointPool
+{
+	private volatile List<Endpoint> endpoints = Collections.emptyList();
+
+	/**
+	 * Replaces the endpoint list, keeping the statistics of endpoints that stay configured.
+	 */
+	void configure(List<HttpUrl> urls)
+	{
+		List<Endpoint> previous = endpoints;
+		List<Endpoint> next = new ArrayList<>(urls.size());
+		for (HttpUrl url : urls)
+		{
+			Endpoint endpoint = null;
+			for (Endpoint existing : previous)
+			{
+				if (existing.getUrl().equals(url))
+				{
+					endpoint = existing;
+					break;
+				}
+			}
+			next.add(endpoint != null ? endpoint : new Endpoint(url));
+		}
+		endpoints = Collections.unmodifiableList(next);
+	}
+
+	List<Endpoint> getEndpoints()
+	{
+		return endpoints;
+	}
+
+	/**
+	 * The healthiest endpoint with a closed circuit other than {@code exclude}. When every
+	 * circuit is open the one that re-opens first is returned, unless it is excluded.
+	 */
+	Endpoint healthiest(Endpoint exclude)
+	{
+		long now = System.currentTimeMillis();
+		Endpoint best = null;
+		double bestScore = -1;
+		Endpoint soonest = null;
+
+		for (Endpoint endpoint : endpoints)
+		{
+			if (endpoint == exclude)
+			{
+				continue;
+			}
+
+			if (!endpoint.isAvailable(now))
+			{
+				if (soonest == null || endpoint.getOpenUntil() < soonest.getOpenUntil())
+				{
+					soonest = endpoint;
+				}
+				continue;
+			}
+
+			double score = endpoint.healthScore();
+			if (score > bestScore)
+			{
+				best = endpoint;
+				bestScore = score;
+			}
+		}
+
+		if (best != null)
+		{
+			return best;
+		}
+		// A hedge is only worth sending to an endpoint that is not known to be down
+		return exclude == null ? soonest : null;
+	}
+}
@@ -0,0 +1,243 @@
+package com.citizencycle.services;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * A request sent to a primary endpoint and, if it has not answered within the hedge
+ * delay or fails, to a secondary one. The first valid response is delivered to the
+ * callback and the other call is cancelled. Every attempt is recorded against the
+ * {@link Endpoint} it was sent to, found through the request tag.
+ */
+@Slf4j
+public class HedgedCall
+{
+	private final Callback callback;
+	private final ServerClock clock;
+	private final List<Call> calls = new ArrayList<>(2);
+	private Supplier<Call> hedgeSupplier;
+	private ScheduledFuture<?> hedgeFuture;
+	private boolean hedgeSent = false;
+	private int pending = 0;
+	private boolean done = false;
+	private boolean canceled = false;
+
+	HedgedCall(Callback callback, ServerClock clock)
+	{
+		this.callback = callback;
+		this.clock = clock;
+	}
+
+	void start(Call call)
+	{
+		attempt(call);
+	}
+
+	/**
+	 * Sends the second request after the delay unless the first one has already answered.
+	 */
+	synchronized void hedgeAfter(ScheduledExecutorService executor, long delayMs, Supplier<Call> supplier)
+	{
+		hedgeSupplier = supplier;
+		hedgeFuture = executor.schedule(this::sendHedge, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	public void cancel()
+	{
+		List<Call> toCancel;
+		synchronized (this)
+		{
+			canceled = true;
+			if (hedgeFuture != null)
+			{
+				hedgeFuture.cancel(false);
+			}
+			toCancel = new ArrayList<>(calls);
+		}
+
+		for (Call call : toCancel)
+		{
+			call.cancel();
+		}
+	}
+
+	private void sendHedge()
+	{
+		Supplier<Call> supplier;
+		synchronized (this)
+		{
+			if (done || canceled || hedgeSent || hedgeSupplier == null)
+			{
+				return;
+			}
+			hedgeSent = true;
+			supplier = hedgeSupplier;
+		}
+
+		Call call = supplier.get();
+		if (call != null)
+		{
+			log.debug("Hedging citizen request to {}", call.request().url().host());
+			attempt(call);
+		}
+	}
+
+	private void attempt(Call call)
+	{
+		synchronized (this)
+		{
+			calls.add(call);
+			pending++;
+		}
+
+		Endpoint endpoint = (Endpoint) call.request().tag();
+		long start = System.currentTimeMillis();
+
+		call.enqueue(new Callback()
+		{
+			@Override
+			public void onFailure(Call failed, IOException e)
+			{
+				if (!failed.isCanceled())
+				{
+					long now = System.currentTimeMillis();
+					endpoint.recordFailure(now - start, now);
+				}
+				attemptFailed(failed, e);
+			}
+
+			@Override
+			public void onResponse(Call answered, Response response) throws IOException
+			{
+				long now = System.currentTimeMillis();
+				clock.observe(endpoint, response);
+				if (response.isSuccessful() || response.code() == 304)
+				{
+					endpoint.recordSuccess(now - start);
+					deliver(answered, response);
+				}
+				else
+				{
+					endpoint.recordFailure(now - start, now);
+					attemptRejected(answered, response);
+				}
+			}
+		});
+	}
+
+	private void deliver(Call call, Response response) throws IOException
+	{
+		List<Call> losers = new ArrayList<>(1);
+		synchronized (this)
+		{
+			pending--;
+			if (done)
+			{
+				response.close();
+				return;
+			}
+
+			done = true;
+			if (hedgeFuture != null)
+			{
+				hedgeFuture.cancel(false);
+			}
+
+			for (Call other : calls)
+			{
+				if (other != call)
+				{
+					losers.add(other);
+				}
+			}
+		}
+
+		for (Call loser : losers)
+		{
+			loser.cancel();
+		}
+
+		callback.onResponse(call, response);
+	}
+
+	private void attemptFailed(Call call, IOException e)
+	{
+		if (!settleFailure())
+		{
+			return;
+		}
+		callback.onFailure(call, e);
+	}
+
+	private void attemptRejected(Call call, Response response) throws IOException
+	{
+		if (!settleFailure())
+		{
+			response.close();
+			return;
+		}
+		// Nothing else left to wait for, hand over the error response
+		callback.onResponse(call, response);
+	}
+
+	/**
+	 * Records a failed attempt, hedging right away if that has not happened yet.
+	 *
+	 * @return true when this was the last hope and the failure should be delivered
+	 */
+	private boolean settleFailure()
+	{
+		boolean hedgeNow;
+		synchronized (this)
+		{
+			pending--;
+			if (done)
+			{
+				return false;
+			}
+
+			hedgeNow = !hedgeSent && !canceled && hedgeSupplier != null;
+			if (!hedgeNow && pending > 0)
+			{
+				return false;
+			}
+		}
+
+		if (hedgeNow)
+		{
+			if (hedgeFuture != null)
+			{
+				hedgeFuture.cancel(false);
+			}
+			sendHedge();
+
+			synchronized (this)
+			{
+				if (pending > 0)
+				{
+					return false;
+				}
+			}
+		}
+
+		synchronized (this)
+		{
+			if (done)
+			{
+				return false;
+			}
+			done = true;
+			return true;
+		}
+	}
+}
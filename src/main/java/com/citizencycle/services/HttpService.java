@@ -1,54 +1,573 @@
 package com.citizencycle.services;
 
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import com.citizencycle.CitizenCycleConfig;
+import com.citizencycle.modules.broadcast.CitizenFeedDecoder;
 import com.citizencycle.objects.BroadcastPayload;
 import static net.runelite.http.api.RuneLiteAPI.GSON;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
 import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.RequestBody;
+import okhttp3.Response;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+@Slf4j
+@Singleton
 public class HttpService
 {
+	private static final int OUTBOUND_CAPACITY = 32;
+	private static final long MAX_RETRY_DELAY_MS = 60_000;
+	// How long a forced flush waits for the batch already in flight
+	private static final long FORCED_FLUSH_WAIT_MS = 2000;
+	// Prefer the compact binary feed, servers that do not know it answer with JSON
+	private static final String FEED_ACCEPT = CitizenFeedDecoder.BINARY_MEDIA_TYPE + ", application/json;q=0.9";
+	// Request bodies below this size are sent uncompressed
+	private static final int COMPRESSION_THRESHOLD_BYTES = 1024;
+	private static final int CONNECT_TIMEOUT_SECONDS = 5;
+	private static final int READ_TIMEOUT_SECONDS = 10;
+	private static final int STREAM_READ_TIMEOUT_SECONDS = 45;
+	private static final MediaType JSON = MediaType.parse("application/json");
+	// Hedge once the primary is slower than this share of its recent requests
+	private static final double HEDGE_PERCENTILE = 0.9;
+	private static final long MIN_HEDGE_DELAY_MS = 100;
+	private static final long DEFAULT_HEDGE_DELAY_MS = 1000;
+
 	@Inject
 	private CitizenCycleConfig config;
 
 	@Inject
 	private OkHttpClient okHttpClient;
 
-	public void post(BroadcastPayload payload, Callback callback) throws IllegalArgumentException
+	// Plugin-scoped profile of the RuneLite client, built on first use
+	private OkHttpClient client;
+	private OkHttpClient streamClient;
+
+	@Inject
+	private ScheduledExecutorService executor;
+
+	@Inject
+	private ServerClock serverClock;
+
+	// Only rebuilt when the endpoint or authorization setting changes
+	private final EndpointPool endpointPool = new EndpointPool();
+	private volatile String authorization = "";
+
+	// Latest unsent report per world, oldest first. Guarded by this.
+	private final LinkedHashMap<Integer, BroadcastPayload> outbound = new LinkedHashMap<>();
+	private boolean flushInFlight = false;
+	// The batch being sent, read back by the shared flush callback
+	private List<BroadcastPayload> inFlightBatch = null;
+	private int flushFailures = 0;
+	private long nextFlushAt = 0;
+
+	@Getter
+	private volatile int droppedReports = 0;
+
+	@Getter
+	private volatile int coalescedReports = 0;
+
+	/**
+	 * Queues a report for the server. Only the latest report per world is kept, and
+	 * reports that cannot be sent are retried with backoff keeping their original timestamp.
+	 */
+	public void queueBroadcast(BroadcastPayload payload)
+	{
+		synchronized (this)
+		{
+			if (outbound.remove(payload.getWorld()) != null)
+			{
+				coalescedReports++;
+			}
+			else if (outbound.size() >= OUTBOUND_CAPACITY)
+			{
+				Iterator<Integer> eldest = outbound.keySet().iterator();
+				eldest.next();
+				eldest.remove();
+				droppedReports++;
+				log.warn("Outbound citizen report queue full, dropped oldest report ({} dropped total)", droppedReports);
+			}
+
+			outbound.put(payload.getWorld(), payload);
+		}
+
+		flushOutbound(false);
+	}
+
+	/**
+	 * Sends every queued report as one request, unless a send is already in flight
+	 * or the queue is backing off after a failure.
+	 *
+	 * @param force ignore the retry backoff and wait a bounded time for a send in flight,
+	 *              used when shutting down
+	 */
+	public void flushOutbound(boolean force)
+	{
+		List<BroadcastPayload> batch;
+		boolean tracked;
+		synchronized (this)
+		{
+			if (force)
+			{
+				// A failed send is requeued, so it goes out with the rest
+				awaitInFlight(FORCED_FLUSH_WAIT_MS);
+			}
+			if (outbound.isEmpty() || (!force && (flushInFlight || System.currentTimeMillis() < nextFlushAt)))
+			{
+				return;
+			}
+
+			batch = new ArrayList<>(outbound.values());
+			outbound.clear();
+			// Still in flight after waiting, the rest is sent alongside without retries
+			tracked = !flushInFlight;
+			if (tracked)
+			{
+				flushInFlight = true;
+				inFlightBatch = batch;
+			}
+		}
+
+		if (!post(batch, tracked ? flushCallback : untrackedCallback) && tracked)
+		{
+			// No usable endpoint, the reports have nowhere to go
+			synchronized (this)
+			{
+				flushInFlight = false;
+				inFlightBatch = null;
+			}
+		}
+	}
+
+	/**
+	 * Waits until no send is in flight or the timeout passes, must hold this lock.
+	 */
+	private void awaitInFlight(long timeoutMillis)
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		try
+		{
+			for (long remaining = timeoutMillis; flushInFlight && remaining > 0; remaining = deadline - System.currentTimeMillis())
+			{
+				wait(remaining);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * One callback for every flush, only one is ever in flight.
+	 */
+	private final Callback flushCallback = new Callback()
+	{
+		@Override
+		public void onFailure(Call call, IOException e)
+		{
+			log.warn("Failed to broadcast citizen status: {}", e.getMessage());
+			requeue();
+		}
+
+		@Override
+		public void onResponse(Call call, Response response)
+		{
+			try
+			{
+				if (response.isSuccessful() || response.code() == 400)
+				{
+					// A rejected report will not succeed on retry either
+					onFlushed();
+				}
+				else
+				{
+					log.warn("Failed to broadcast citizen status: HTTP {}", response.code());
+					requeue();
+				}
+			}
+			finally
+			{
+				response.close();
+			}
+		}
+	};
+
+	/**
+	 * For a forced flush sent while another is in flight, its reports are not retried.
+	 */
+	private final Callback untrackedCallback = new Callback()
+	{
+		@Override
+		public void onFailure(Call call, IOException e)
+		{
+			log.warn("Failed to broadcast citizen status: {}", e.getMessage());
+		}
+
+		@Override
+		public void onResponse(Call call, Response response)
+		{
+			if (!response.isSuccessful())
+			{
+				log.warn("Failed to broadcast citizen status: HTTP {}", response.code());
+			}
+			response.close();
+		}
+	};
+
+	private static byte[] gzip(byte[] data)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out))
+		{
+			gzip.write(data);
+		}
+		catch (IOException e)
+		{
+			// Writing to memory does not fail
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+
+	public synchronized int getOutboundDepth()
+	{
+		return outbound.size();
+	}
+
+	private synchronized void onFlushed()
+	{
+		int count = inFlightBatch == null ? 0 : inFlightBatch.size();
+		inFlightBatch = null;
+		flushInFlight = false;
+		flushFailures = 0;
+		nextFlushAt = 0;
+		notifyAll();
+		log.debug("Broadcast {} citizen report(s), {} queued, {} coalesced, {} dropped",
+			count, outbound.size(), coalescedReports, droppedReports);
+	}
+
+	private synchronized void requeue()
+	{
+		List<BroadcastPayload> batch = inFlightBatch == null ? Collections.emptyList() : inFlightBatch;
+		inFlightBatch = null;
+		flushInFlight = false;
+		flushFailures++;
+		nextFlushAt = System.currentTimeMillis() + Math.min(MAX_RETRY_DELAY_MS, 1000L << Math.min(flushFailures, 6));
+		notifyAll();
+
+		// Put the failed reports back in front of anything queued since, unless superseded
+		LinkedHashMap<Integer, BroadcastPayload> merged = new LinkedHashMap<>();
+		for (BroadcastPayload payload : batch)
+		{
+			if (!outbound.containsKey(payload.getWorld()))
+			{
+				merged.put(payload.getWorld(), payload);
+			}
+		}
+		merged.putAll(outbound);
+		outbound.clear();
+
+		for (BroadcastPayload payload : merged.values())
+		{
+			if (outbound.size() >= OUTBOUND_CAPACITY)
+			{
+				droppedReports++;
+				continue;
+			}
+			outbound.put(payload.getWorld(), payload);
+		}
+	}
+
+	private boolean post(List<BroadcastPayload> batch, Callback callback)
 	{
-		String endpoint = config.getEndpoint();
-		if (endpoint == null || endpoint.isEmpty())
+		Endpoint endpoint = endpointPool.healthiest(null);
+		if (endpoint == null)
 		{
-			return;
+			return false;
 		}
 
-		Request request = new Request.Builder()
-			.url(endpoint.replaceAll("\\s", ""))
-			.addHeader("authorization", config.getAuthorization().replaceAll("\\s", ""))
-			.post(RequestBody.create(MediaType.parse("application/json"), GSON.toJson(payload)))
+		// Report times are on the clock of the server whose data is in use, this one may differ
+		List<BroadcastPayload> reports = new ArrayList<>(batch.size());
+		for (BroadcastPayload payload : batch)
+		{
+			long timestamp = serverClock.translate(payload.getTimestamp(), endpoint);
+			reports.add(timestamp == payload.getTimestamp() ? payload : new BroadcastPayload(payload.getPlayerName(),
+				payload.getWorld(), payload.isDistracted(), timestamp, payload.getTick(), payload.getNpcId(),
+				payload.getNpcIndex(), payload.getConfidence()));
+		}
+
+		// Single reports stay a plain object for servers without batch support
+		String json = reports.size() == 1 ? GSON.toJson(reports.get(0)) : GSON.toJson(reports);
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+
+		Request.Builder builder = new Request.Builder()
+			.url(endpoint.getUrl())
+			.tag(endpoint)
+			.addHeader("authorization", authorization);
+
+		if (body.length >= COMPRESSION_THRESHOLD_BYTES)
+		{
+			int uncompressed = body.length;
+			body = gzip(body);
+			builder.addHeader("Content-Encoding", "gzip");
+			log.debug("Compressed citizen report batch from {} to {} bytes", uncompressed, body.length);
+		}
+
+		Request request = builder
+			.post(RequestBody.create(JSON, body))
 			.build();
 
-		okHttpClient.newCall(request).enqueue(callback);
+		long start = System.currentTimeMillis();
+		client().newCall(request).enqueue(new Callback()
+		{
+			@Override
+			public void onFailure(Call call, IOException e)
+			{
+				long now = System.currentTimeMillis();
+				endpoint.recordFailure(now - start, now);
+				callback.onFailure(call, e);
+			}
+
+			@Override
+			public void onResponse(Call call, Response response) throws IOException
+			{
+				long now = System.currentTimeMillis();
+				serverClock.observe(endpoint, response);
+				if (response.code() >= 500)
+				{
+					endpoint.recordFailure(now - start, now);
+				}
+				else
+				{
+					endpoint.recordSuccess(now - start);
+				}
+				callback.onResponse(call, response);
+			}
+		});
+		return true;
 	}
 
-	public void get(Callback callback)
+	/**
+	 * Fetches the citizen feed from the healthiest endpoint, hedging to the next healthiest
+	 * one if it has not answered within its usual latency. The cursor and etag belong to
+	 * one server, so they are only sent to {@code cursorEndpoint}; any other endpoint is
+	 * asked for a full snapshot. The endpoint that answered is the call's request tag.
+	 *
+	 * @return the request, or null when no endpoint is configured
+	 */
+	public HedgedCall get(Endpoint cursorEndpoint, long since, String etag, Callback callback)
 	{
-		String endpoint = config.getEndpoint();
-		if (endpoint == null || endpoint.isEmpty())
+		Endpoint primary = endpointPool.healthiest(null);
+		if (primary == null)
+		{
+			return null;
+		}
+
+		HedgedCall hedged = new HedgedCall(callback, serverClock);
+		hedged.start(newFeedCall(primary, cursorEndpoint, since, etag));
+
+		Endpoint secondary = endpointPool.healthiest(primary);
+		if (secondary != null)
 		{
-			return;
+			hedged.hedgeAfter(executor, hedgeDelayMillis(primary), () -> newFeedCall(secondary, cursorEndpoint, since, etag));
 		}
 
-		Request request = new Request.Builder()
-			.url(endpoint)
-			.addHeader("authorization", config.getAuthorization())
-			.get()
+		return hedged;
+	}
+
+	private Call newFeedCall(Endpoint endpoint, Endpoint cursorEndpoint, long since, String etag)
+	{
+		boolean sameServer = endpoint == cursorEndpoint;
+		HttpUrl url = endpoint.getUrl().newBuilder()
+			.addQueryParameter("since", Long.toString(sameServer ? Math.max(since, 0) : 0))
 			.build();
 
-		okHttpClient.newCall(request).enqueue(callback);
+		Request.Builder builder = new Request.Builder()
+			.url(url)
+			.tag(endpoint)
+			.addHeader("authorization", authorization)
+			.addHeader("Accept", FEED_ACCEPT)
+			// Asking explicitly turns off OkHttp's transparent gzip, the decoder inflates
+			// the body itself so it can count the bytes on the wire
+			.addHeader("Accept-Encoding", "gzip")
+			.get();
+
+		if (sameServer && etag != null)
+		{
+			builder.addHeader("If-None-Match", etag);
+		}
+
+		return client().newCall(builder.build());
+	}
+
+	private static long hedgeDelayMillis(Endpoint primary)
+	{
+		long p90 = primary.percentileMillis(HEDGE_PERCENTILE);
+		return p90 < 0 ? DEFAULT_HEDGE_DELAY_MS : Math.max(MIN_HEDGE_DELAY_MS, p90);
+	}
+
+	/**
+	 * Opens the Server-Sent Events stream next to the endpoint ({@code <endpoint>/stream}).
+	 * The server sends a heartbeat every 15 seconds, so a silent connection times out.
+	 */
+	public Call openStream(Endpoint cursorEndpoint, long lastEventId, Callback callback)
+	{
+		Endpoint endpoint = endpointPool.healthiest(null);
+		if (endpoint == null)
+		{
+			return null;
+		}
+
+		Request.Builder builder = new Request.Builder()
+			.url(endpoint.getStreamUrl())
+			.tag(endpoint)
+			.addHeader("authorization", authorization)
+			.addHeader("Accept", "text/event-stream")
+			.get();
+
+		if (lastEventId >= 0 && endpoint == cursorEndpoint)
+		{
+			builder.addHeader("Last-Event-ID", Long.toString(lastEventId));
+		}
+
+		Call call = streamClient().newCall(builder.build());
+		call.enqueue(callback);
+		return call;
+	}
+
+	/**
+	 * Parses the endpoint and authorization settings, then opens a connection to every
+	 * endpoint ahead of the first refresh so it does not pay for DNS and the TLS handshake.
+	 */
+	public void startUp()
+	{
+		reconfigure();
+
+		for (Endpoint endpoint : endpointPool.getEndpoints())
+		{
+			Request request = new Request.Builder()
+				.url(endpoint.getUrl())
+				.tag(endpoint)
+				.addHeader("authorization", authorization)
+				.head()
+				.build();
+
+			client().newCall(request).enqueue(new Callback()
+			{
+				@Override
+				public void onFailure(Call call, IOException e)
+				{
+					log.debug("Failed to pre-warm citizen endpoint {}: {}", endpoint.getUrl().host(), e.getMessage());
+				}
+
+				@Override
+				public void onResponse(Call call, Response response)
+				{
+					// Also gives the endpoint's clock estimate its first sample
+					serverClock.observe(endpoint, response);
+					response.close();
+					log.debug("Pre-warmed citizen endpoint {} over {}", endpoint.getUrl().host(), response.protocol());
+				}
+			});
+		}
+	}
+
+	/**
+	 * Rebuilds the parsed endpoints and authorization header, call when either setting
+	 * changes. The endpoint setting may list several mirrors separated by commas.
+	 */
+	public void reconfigure()
+	{
+		List<HttpUrl> urls = new ArrayList<>();
+		String endpoints = config.getEndpoint();
+		if (endpoints != null)
+		{
+			for (String endpoint : endpoints.split(","))
+			{
+				String trimmed = endpoint.replaceAll("\\s", "");
+				if (trimmed.isEmpty())
+				{
+					continue;
+				}
+
+				HttpUrl url = HttpUrl.parse(trimmed);
+				if (url == null)
+				{
+					log.warn("Invalid citizen endpoint: {}", trimmed);
+					continue;
+				}
+				urls.add(url);
+			}
+		}
+
+		String auth = config.getAuthorization();
+		authorization = auth == null ? "" : auth.replaceAll("\\s", "");
+		endpointPool.configure(urls);
+	}
+
+	/**
+	 * Latency percentiles, success rate and circuit state of every endpoint, one per line.
+	 */
+	public String getEndpointReport()
+	{
+		long now = System.currentTimeMillis();
+		StringBuilder report = new StringBuilder();
+		for (Endpoint endpoint : endpointPool.getEndpoints())
+		{
+			if (report.length() > 0)
+			{
+				report.append('\n');
+			}
+			report.append(endpoint.describe(now));
+		}
+		return report.toString();
+	}
+
+	private synchronized OkHttpClient client()
+	{
+		if (client == null)
+		{
+			client = okHttpClient.newBuilder()
+				.connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+				.readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+				.writeTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+				.connectionPool(new ConnectionPool(2, 5, TimeUnit.MINUTES))
+				.protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+				.build();
+		}
+		return client;
+	}
+
+	private synchronized OkHttpClient streamClient()
+	{
+		if (streamClient == null)
+		{
+			// Shares the connection pool, only waits longer for the heartbeat
+			streamClient = client().newBuilder()
+				.readTimeout(STREAM_READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+				.build();
+		}
+		return streamClient;
 	}
 }
@@ -0,0 +1,128 @@
+package com.citizencycle.services;
+
+import com.google.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Response;
+
+import java.util.Date;
+
+/**
+ * Estimate of the crowdsourcing servers' clocks. Every server response carries its time,
+ * and each {@link Endpoint} keeps its own offset to the local clock, taken at the midpoint
+ * of the request and smoothed. Times are read on the clock of the endpoint whose data is
+ * in use, so timestamps exchanged between clients with skewed clocks line up.
+ */
+@Slf4j
+@Singleton
+public class ServerClock
+{
+	public static final int GAME_TICK_MILLIS = 600;
+
+	// Millisecond precise time sent by this plugin's server, the Date header is the fallback
+	static final String SERVER_TIME_HEADER = "X-Server-Time";
+
+	// Samples from slow round trips say little about the offset
+	private static final long MAX_ROUND_TRIP_MS = 5000;
+
+	// The endpoint whose data is in use, until then the first one heard from
+	private volatile Endpoint source;
+
+	/**
+	 * Current time on the server's clock.
+	 */
+	public long now()
+	{
+		return System.currentTimeMillis() + getOffsetMillis();
+	}
+
+	/**
+	 * Server time of a game tick, given the tick that is current now.
+	 */
+	public long tickToTime(int tick, int currentTick)
+	{
+		return now() - (long) (currentTick - tick) * GAME_TICK_MILLIS;
+	}
+
+	public long getOffsetMillis()
+	{
+		Endpoint endpoint = source;
+		return endpoint == null ? 0 : endpoint.getClockOffsetMillis();
+	}
+
+	public boolean isSynced()
+	{
+		Endpoint endpoint = source;
+		return endpoint != null && endpoint.isClockSynced();
+	}
+
+	/**
+	 * Reads times on the clock of the endpoint that served the data in use.
+	 */
+	public void follow(Endpoint endpoint)
+	{
+		if (endpoint != null)
+		{
+			source = endpoint;
+		}
+	}
+
+	/**
+	 * Moves a time read on this clock onto the clock of another endpoint.
+	 */
+	long translate(long time, Endpoint to)
+	{
+		Endpoint from = source;
+		if (from == null || from == to || !from.isClockSynced() || !to.isClockSynced())
+		{
+			return time;
+		}
+		return time - from.getClockOffsetMillis() + to.getClockOffsetMillis();
+	}
+
+	/**
+	 * Folds the server time of a response into the offset estimate of the endpoint it came from.
+	 */
+	void observe(Endpoint endpoint, Response response)
+	{
+		long sent = response.sentRequestAtMillis();
+		long received = response.receivedResponseAtMillis();
+		if (sent <= 0 || received < sent || received - sent > MAX_ROUND_TRIP_MS || response.cacheResponse() != null)
+		{
+			return;
+		}
+
+		long serverTime;
+		String precise = response.header(SERVER_TIME_HEADER);
+		if (precise != null)
+		{
+			try
+			{
+				serverTime = Long.parseLong(precise.trim());
+			}
+			catch (NumberFormatException e)
+			{
+				return;
+			}
+		}
+		else
+		{
+			Date date = response.headers().getDate("Date");
+			if (date == null)
+			{
+				return;
+			}
+			// The header is truncated to the second
+			serverTime = date.getTime() + 500;
+		}
+
+		long sample = serverTime - (sent + received) / 2;
+		if (endpoint.recordClockSample(sample))
+		{
+			log.debug("Server clock offset of {} is {}ms", endpoint.getUrl().host(), sample);
+		}
+		if (source == null)
+		{
+			source = endpoint;
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package com.citizencycle.modules.broadcast;
+
+import com.citizencycle.objects.CitizenStatus;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Compares decoding the same feed as JSON and as binary. Not part of the test suite, run
+ * its main method by hand to compare before and after a change.
+ */
+public class CitizenFeedDecoderBenchmark
+{
+	private static final int RUNS = 200;
+
+	public static void main(String[] args) throws IOException
+	{
+		CitizenFeedDecoder decoder = new CitizenFeedDecoder(System::currentTimeMillis);
+		for (int worlds : new int[]{50, 250, 1000})
+		{
+			List<CitizenStatus> fixture = CitizenFeedDecoderTest.fixture(worlds);
+			String json = CitizenFeedDecoderTest.toJson(fixture, 1234);
+			byte[] binary = CitizenFeedDecoderTest.toBinary(fixture, 1234);
+
+			long jsonNanos = Long.MAX_VALUE;
+			long binaryNanos = Long.MAX_VALUE;
+			for (int i = 0; i < RUNS; i++)
+			{
+				jsonNanos = Math.min(jsonNanos, decoder.decode(new StringReader(json)).getDecodeNanos());
+				binaryNanos = Math.min(binaryNanos, decoder.decodeBinary(new ByteArrayInputStream(binary)).getDecodeNanos());
+			}
+			System.out.printf("%d worlds: json %d bytes in %dus, binary %d bytes in %dus%n",
+				worlds, json.getBytes(StandardCharsets.UTF_8).length, jsonNanos / 1000, binary.length, binaryNanos / 1000);
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package com.citizencycle.modules.broadcast;
+
+import com.citizencycle.objects.CitizenStatus;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CitizenFeedDecoderTest
+{
+	private static final long NOW = 1_700_000_000_000L;
+
+	private final CitizenFeedDecoder decoder = new CitizenFeedDecoder(() -> NOW);
+
+	@Test
+	public void decodesChangeFeed() throws IOException
+	{
+		FeedDelta delta = decoder.decode(new StringReader("{\"cursor\":42,\"full\":false,"
+			+ "\"changed\":[{\"world\":301,\"distracted\":true,\"distractionStartTime\":1000,"
+			+ "\"distractionEndTime\":500,\"lastUpdateTime\":1000,\"reportedBy\":\"Alice\",\"seq\":42}],"
+			+ "\"removed\":[302]}"));
+
+		assertEquals(42, delta.getCursor());
+		assertFalse(delta.isFull());
+		assertEquals(Arrays.asList(new CitizenStatus(301, true, 1000, 500, 1000, "Alice")), delta.getChanged());
+		assertEquals(Arrays.asList(302), delta.getRemoved());
+		assertEquals(0, delta.getRejected());
+	}
+
+	@Test
+	public void legacyArrayIsFullSnapshot() throws IOException
+	{
+		FeedDelta delta = decoder.decode(new StringReader("[{\"world\":301,\"distracted\":false,"
+			+ "\"distractionEndTime\":500,\"lastUpdateTime\":900,\"reportedBy\":\"Bob\"}]"));
+
+		assertTrue(delta.isFull());
+		assertEquals(-1, delta.getCursor());
+		assertEquals(Arrays.asList(new CitizenStatus(301, false, 0, 500, 900, "Bob")), delta.getChanged());
+	}
+
+	@Test
+	public void skipsUnknownFields() throws IOException
+	{
+		FeedDelta delta = decoder.decode(new StringReader("[{\"world\":301,\"nested\":{\"a\":[1,2,{\"b\":null}]},"
+			+ "\"distracted\":true,\"distractionStartTime\":1000,\"lastUpdateTime\":1000,\"extra\":\"x\"}]"));
+
+		assertEquals(1, delta.getChanged().size());
+		assertEquals(0, delta.getRejected());
+	}
+
+	@Test
+	public void rejectsMalformedEntriesOneAtATime() throws IOException
+	{
+		FeedDelta delta = decoder.decode(new StringReader("{\"cursor\":7,\"changed\":["
+			+ "{\"world\":301,\"distracted\":true,\"distractionStartTime\":1000,\"lastUpdateTime\":1000},"
+			+ "\"not an object\","
+			+ "{\"distracted\":true},"
+			+ "{\"world\":\"302\",\"distracted\":true},"
+			+ "{\"world\":303,\"distracted\":\"yes\"},"
+			+ "{\"world\":304},"
+			+ "[1,2],"
+			+ "{\"world\":305,\"distracted\":false,\"distractionEndTime\":\"soon\",\"lastUpdateTime\":2000}"
+			+ "],\"removed\":[306,\"307\",{}]}"));
+
+		assertEquals(7, delta.getCursor());
+		assertEquals(2, delta.getChanged().size());
+		assertEquals(301, delta.getChanged().get(0).getWorld());
+		// A bad optional field only loses that field
+		assertEquals(new CitizenStatus(305, false, 0, 0, 2000, ""), delta.getChanged().get(1));
+		assertEquals(Arrays.asList(306), delta.getRemoved());
+		assertEquals(8, delta.getRejected());
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedBodyFails() throws IOException
+	{
+		decoder.decode(new StringReader("[{\"world\":301,\"distracted\":true"));
+	}
+
+	@Test
+	public void recordsStatsPerDecode() throws IOException
+	{
+		FeedDelta first = decoder.decode(new StringReader("[]"));
+		FeedDelta second = decoder.decode(new StringReader("[{\"world\":301,\"distracted\":true}]"));
+
+		assertFalse(first.isBinary());
+		assertTrue(second.getDecodeNanos() >= 0);
+		// No last update from an older server, taken as received now on the server's clock
+		assertEquals(NOW, second.getChanged().get(0).getLastUpdateTime());
+		assertEquals(2, decoder.getDecodeCount());
+		assertEquals(first.getDecodeNanos() + second.getDecodeNanos(), decoder.getTotalDecodeNanos());
+	}
+
+	@Test
+	public void binaryDecodesSameStatusesAsJson() throws IOException
+	{
+		List<CitizenStatus> fixture = fixture(250);
+		String json = toJson(fixture, 1234);
+		byte[] binary = toBinary(fixture, 1234);
+
+		FeedDelta fromJson = decoder.decode(new StringReader(json));
+		FeedDelta fromBinary = decoder.decodeBinary(new ByteArrayInputStream(binary));
+
+		assertEquals(fixture, fromJson.getChanged());
+		assertEquals(fromJson.getChanged(), fromBinary.getChanged());
+		assertEquals(fromJson.getCursor(), fromBinary.getCursor());
+		assertEquals(fromJson.isFull(), fromBinary.isFull());
+		assertFalse(fromJson.isBinary());
+		assertTrue(fromBinary.isBinary());
+
+		int jsonBytes = json.getBytes(StandardCharsets.UTF_8).length;
+		assertTrue("binary " + binary.length + " bytes, json " + jsonBytes, binary.length * 3 < jsonBytes);
+	}
+
+	@Test
+	public void oversizedReporterTableFailsFast() throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(0x43);
+		out.write(1);
+		out.write(0);
+		writeVarint(out, 1000);
+		writeVarint(out, Integer.MAX_VALUE + 10L);
+
+		try
+		{
+			decoder.decodeBinary(new ByteArrayInputStream(out.toByteArray()));
+			fail();
+		}
+		catch (IOException e)
+		{
+			assertTrue(e.getMessage().contains("out of range"));
+		}
+	}
+
+	static List<CitizenStatus> fixture(int worlds)
+	{
+		String[] reporters = {"Alice", "Bob", "Carol Smith", "Dave"};
+		long base = 1_700_000_000_000L;
+		List<CitizenStatus> statuses = new ArrayList<>();
+		for (int i = 0; i < worlds; i++)
+		{
+			boolean distracted = i % 3 == 0;
+			long end = i % 7 == 0 ? 0 : base + i * 1000L;
+			long start = distracted ? base + 90_000 + i * 1000L : 0;
+			long update = Math.max(start, end) + 500;
+			statuses.add(new CitizenStatus(301 + i, distracted, start, end, update == 500 ? base : update, reporters[i % reporters.length]));
+		}
+		return statuses;
+	}
+
+	static String toJson(List<CitizenStatus> statuses, long cursor)
+	{
+		StringBuilder json = new StringBuilder("{\"cursor\":").append(cursor).append(",\"full\":true,\"changed\":[");
+		for (int i = 0; i < statuses.size(); i++)
+		{
+			CitizenStatus status = statuses.get(i);
+			json.append(i == 0 ? "" : ",")
+				.append("{\"world\":").append(status.getWorld())
+				.append(",\"distracted\":").append(status.isDistracted())
+				.append(",\"distractionStartTime\":").append(status.getDistractionStartTime())
+				.append(",\"distractionEndTime\":").append(status.getDistractionEndTime())
+				.append(",\"lastUpdateTime\":").append(status.getLastUpdateTime())
+				.append(",\"reportedBy\":\"").append(status.getReportedBy())
+				.append("\",\"seq\":").append(cursor).append('}');
+		}
+		return json.append("],\"removed\":[]}").toString();
+	}
+
+	/**
+	 * Same encoding as encodeBinary in server.js.
+	 */
+	static byte[] toBinary(List<CitizenStatus> statuses, long cursor) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(0x43);
+		out.write(1);
+		out.write(1 | 2);
+		writeVarint(out, cursor);
+
+		long base = Long.MAX_VALUE;
+		Map<String, Integer> reporters = new LinkedHashMap<>();
+		for (CitizenStatus status : statuses)
+		{
+			for (long time : new long[]{status.getDistractionStartTime(), status.getDistractionEndTime(), status.getLastUpdateTime()})
+			{
+				if (time > 0)
+				{
+					base = Math.min(base, time);
+				}
+			}
+			reporters.putIfAbsent(status.getReportedBy(), reporters.size());
+		}
+		writeVarint(out, base);
+
+		writeVarint(out, reporters.size());
+		for (String name : reporters.keySet())
+		{
+			byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+			writeVarint(out, utf8.length);
+			out.write(utf8);
+		}
+
+		writeVarint(out, statuses.size());
+		for (CitizenStatus status : statuses)
+		{
+			writeVarint(out, (status.getWorld() - 300) * 2L);
+			boolean hasStart = status.getDistractionStartTime() > 0;
+			boolean hasEnd = status.getDistractionEndTime() > 0;
+			out.write((status.isDistracted() ? 1 : 0) | (hasStart ? 2 : 0) | (hasEnd ? 4 : 0));
+			if (hasStart)
+			{
+				writeVarint(out, status.getDistractionStartTime() - base);
+			}
+			if (hasEnd)
+			{
+				writeVarint(out, status.getDistractionEndTime() - base);
+			}
+			writeVarint(out, status.getLastUpdateTime() - base);
+			writeVarint(out, reporters.get(status.getReportedBy()));
+		}
+
+		writeVarint(out, 0);
+		return out.toByteArray();
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, long value)
+	{
+		while (value >= 128)
+		{
+			out.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+}
@@ -0,0 +1,103 @@
+package com.citizencycle.modules.broadcast;
+
+import com.citizencycle.objects.CitizenStatus;
+import com.citizencycle.objects.CycleEstimate;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CycleEstimatorTest
+{
+	private static final int WORLD = 330;
+	private static final long DURATION = 15_000;
+
+	private final CycleEstimator estimator = new CycleEstimator();
+	private long time = 1_700_000_000_000L;
+
+	@Test
+	public void learnsSteadyGap()
+	{
+		CycleEstimate estimate = cycles(20, 68);
+
+		assertEquals(68, estimate.getGapSeconds(), 0.5);
+		assertEquals(20, estimate.getSamples());
+	}
+
+	@Test
+	public void singleOutlierIsIgnored()
+	{
+		cycles(20, 68);
+		cycles(1, 110);
+		CycleEstimate estimate = cycles(1, 68);
+
+		assertEquals(68, estimate.getGapSeconds(), 0.5);
+	}
+
+	@Test
+	public void lastingChangeReseeds()
+	{
+		cycles(20, 68);
+		CycleEstimate estimate = cycles(CycleEstimator.REGIME_CHANGE_SAMPLES - 1, 110);
+		assertEquals(68, estimate.getGapSeconds(), 0.5);
+
+		estimate = cycles(1, 110);
+		assertEquals(110, estimate.getGapSeconds(), 0.5);
+		assertEquals(CycleEstimator.REGIME_CHANGE_SAMPLES, estimate.getSamples());
+
+		// Further samples of the new cycle are accepted as usual
+		estimate = cycles(3, 108);
+		assertEquals(108, estimate.getGapSeconds(), 2);
+	}
+
+	@Test
+	public void scatteredOutliersDoNotReseed()
+	{
+		cycles(20, 68);
+		CycleEstimate estimate = null;
+		for (int i = 0; i < 4; i++)
+		{
+			estimate = cycles(1, i % 2 == 0 ? 110 : 140);
+		}
+
+		assertEquals(68, estimate.getGapSeconds(), 0.5);
+	}
+
+	@Test
+	public void refinedTimesAreNotNewCycles()
+	{
+		cycles(20, 68);
+		long end = time;
+		long start = end + 68_000;
+
+		// The server moves each transition to the median as more players report it
+		estimator.observe(new CitizenStatus(WORLD, true, start, end, start, "Alice"));
+		estimator.observe(new CitizenStatus(WORLD, true, start + 3000, end, start + 3000, "Alice"));
+		estimator.observe(new CitizenStatus(WORLD, true, start + 1000, end - 2000, start + 3000, "Alice"));
+		estimator.observe(new CitizenStatus(WORLD, false, 0, start + DURATION, start + DURATION, "Bob"));
+		CitizenStatus status = estimator.observe(new CitizenStatus(WORLD, false, 0, start + DURATION + 4000, start + DURATION + 4000, "Bob"));
+
+		assertEquals(21, status.getCycle().getSamples());
+		assertEquals(68, status.getCycle().getGapSeconds(), 0.5);
+
+		// The next cycle is measured from the refined end
+		time = start + DURATION + 4000;
+		assertEquals(22, cycles(1, 68).getSamples());
+	}
+
+	/**
+	 * Feeds {@code count} full distractions, each starting {@code gap} seconds after the last end.
+	 */
+	private CycleEstimate cycles(int count, int gap)
+	{
+		CitizenStatus status = null;
+		for (int i = 0; i < count; i++)
+		{
+			long end = time;
+			long start = end + gap * 1000L;
+			time = start + DURATION;
+			status = estimator.observe(new CitizenStatus(WORLD, true, start, end, start, "Alice"));
+			status = estimator.observe(new CitizenStatus(WORLD, false, 0, time, time, "Alice"));
+		}
+		return status.getCycle();
+	}
+}
@@ -0,0 +1,182 @@
+package com.citizencycle.modules.broadcast;
+
+import com.citizencycle.objects.CitizenStatus;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DistractionHistoryTest
+{
+	private static final int WORLD = 330;
+	private static final long NOW = System.currentTimeMillis();
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void lastCyclesNewestFirst() throws IOException
+	{
+		DistractionHistory history = new DistractionHistory(new HistorySegments(folder.newFolder(), Runnable::run));
+		cycles(history, 3);
+		// Underway, not a complete cycle yet
+		history.record(new CitizenStatus(WORLD, true, NOW + 3000_000, NOW + 2015_000, NOW + 3000_000, "Alice"));
+
+		long[] starts = new long[5];
+		long[] ends = new long[5];
+		assertEquals(3, history.lastCycles(WORLD, 5, starts, ends));
+		assertArrayEquals(new long[]{NOW + 2000_000, NOW + 1000_000, NOW, 0, 0}, starts);
+		assertArrayEquals(new long[]{NOW + 2015_000, NOW + 1015_000, NOW + 15_000, 0, 0}, ends);
+
+		assertEquals(2, history.lastCycles(WORLD, 2, starts, ends));
+		assertEquals(0, history.lastCycles(WORLD + 1, 5, starts, ends));
+		assertEquals(0, history.lastCycles(WORLD + 10_000, 5, starts, ends));
+	}
+
+	@Test
+	public void repeatedStatusesAreRecordedOnce() throws IOException
+	{
+		File directory = folder.newFolder();
+		DistractionHistory history = new DistractionHistory(new HistorySegments(directory, Runnable::run));
+		CitizenStatus start = new CitizenStatus(WORLD, true, NOW, 0, NOW, "Alice");
+		CitizenStatus end = new CitizenStatus(WORLD, false, 0, NOW + 15_000, NOW + 15_000, "Bob");
+		history.record(start);
+		history.record(start);
+		history.record(end);
+		history.record(end);
+		history.record(start);
+
+		assertEquals(2, new DistractionHistory(new HistorySegments(directory, Runnable::run)).load());
+	}
+
+	@Test
+	public void refinedTransitionsUpdateTheirRecord() throws IOException
+	{
+		File directory = folder.newFolder();
+		DistractionHistory history = new DistractionHistory(new HistorySegments(directory, Runnable::run));
+		history.record(new CitizenStatus(WORLD, true, NOW, 0, NOW, "Alice"));
+		history.record(new CitizenStatus(WORLD, true, NOW + 3000, 0, NOW + 3000, "Alice"));
+		history.record(new CitizenStatus(WORLD, false, 0, NOW + 15_000, NOW + 15_000, "Bob"));
+		history.record(new CitizenStatus(WORLD, false, 0, NOW + 17_000, NOW + 17_000, "Carol"));
+		history.record(new CitizenStatus(WORLD, true, NOW + 90_000, NOW + 17_000, NOW + 90_000, "Alice"));
+		history.record(new CitizenStatus(WORLD, false, 0, NOW + 105_000, NOW + 105_000, "Bob"));
+		// Refined to before the start it ends, not a time the end can have
+		history.record(new CitizenStatus(WORLD, false, 0, NOW + 80_000, NOW + 105_000, "Bob"));
+
+		long[] starts = new long[5];
+		long[] ends = new long[5];
+		assertEquals(2, history.lastCycles(WORLD, 5, starts, ends));
+		assertArrayEquals(new long[]{NOW + 90_000, NOW + 3000, 0, 0, 0}, starts);
+		assertArrayEquals(new long[]{NOW + 105_000, NOW + 17_000, 0, 0, 0}, ends);
+		assertEquals("Carol", history.reporterOf(WORLD, 2));
+
+		// The refinements were persisted and replay to the same records
+		DistractionHistory restored = new DistractionHistory(new HistorySegments(directory, Runnable::run));
+		restored.load();
+		long[] restoredStarts = new long[5];
+		long[] restoredEnds = new long[5];
+		assertEquals(2, restored.lastCycles(WORLD, 5, restoredStarts, restoredEnds));
+		assertArrayEquals(starts, restoredStarts);
+		assertArrayEquals(ends, restoredEnds);
+		assertEquals("Carol", restored.reporterOf(WORLD, 2));
+	}
+
+	@Test
+	public void refinementInTheSameBatchReplaysAfterItsRecord() throws IOException
+	{
+		File directory = folder.newFolder();
+		List<Runnable> tasks = new ArrayList<>();
+		DistractionHistory history = new DistractionHistory(new HistorySegments(directory, tasks::add));
+		// Moved earlier before the batch was written
+		history.record(new CitizenStatus(WORLD, true, NOW + 3000, 0, NOW + 3000, "Alice"));
+		history.record(new CitizenStatus(WORLD, true, NOW, 0, NOW + 3000, "Alice"));
+		history.close();
+
+		DistractionHistory restored = new DistractionHistory(new HistorySegments(directory, Runnable::run));
+		assertEquals(2, restored.load());
+		long[] times = new long[2];
+		byte[] types = new byte[2];
+		assertEquals(1, restored.range(WORLD, 0, Long.MAX_VALUE, times, types));
+		assertEquals(NOW, times[0]);
+	}
+
+	@Test
+	public void rangeIsNewestFirstWithinBounds() throws IOException
+	{
+		DistractionHistory history = new DistractionHistory(new HistorySegments(folder.newFolder(), Runnable::run));
+		cycles(history, 3);
+
+		long[] times = new long[6];
+		byte[] types = new byte[6];
+		assertEquals(3, history.range(WORLD, NOW + 15_000, NOW + 2000_000, times, types));
+		assertArrayEquals(new long[]{NOW + 1015_000, NOW + 1000_000, NOW + 15_000, 0, 0, 0}, times);
+		assertArrayEquals(new byte[]{DistractionHistory.END, DistractionHistory.START, DistractionHistory.END, 0, 0, 0}, types);
+
+		assertEquals(2, history.range(WORLD, 0, Long.MAX_VALUE, new long[2], new byte[2]));
+		assertEquals(0, history.range(WORLD + 1, 0, Long.MAX_VALUE, times, types));
+	}
+
+	@Test
+	public void reportersSurviveTheRingWrapping() throws IOException
+	{
+		DistractionHistory history = new DistractionHistory(new HistorySegments(folder.newFolder(), Runnable::run));
+		// Every record by someone new, more names than the ring's pool holds
+		for (int i = 0; i < DistractionHistory.CAPACITY * 3; i++)
+		{
+			long start = NOW + i * 1000_000L;
+			history.record(new CitizenStatus(WORLD, true, start, 0, start, "Starter " + i));
+			history.record(new CitizenStatus(WORLD, false, 0, start + 15_000, start + 15_000, i % 2 == 0 ? "Bob" : "Ender " + i));
+		}
+
+		int last = DistractionHistory.CAPACITY * 3 - 1;
+		assertEquals("Ender " + last, history.reporterOf(WORLD, 0));
+		assertEquals("Starter " + last, history.reporterOf(WORLD, 1));
+		assertEquals("Bob", history.reporterOf(WORLD, 2));
+		assertEquals("Starter " + (last - DistractionHistory.CAPACITY / 2 + 1), history.reporterOf(WORLD, DistractionHistory.CAPACITY - 1));
+		assertNull(history.reporterOf(WORLD, DistractionHistory.CAPACITY));
+		assertNull(history.reporterOf(WORLD + 1, 0));
+	}
+
+	@Test
+	public void ringKeepsNewestAndSurvivesRestart() throws IOException
+	{
+		File directory = folder.newFolder();
+		DistractionHistory history = new DistractionHistory(new HistorySegments(directory, Runnable::run));
+		cycles(history, DistractionHistory.CAPACITY);
+
+		DistractionHistory restored = new DistractionHistory(new HistorySegments(directory, Runnable::run));
+		assertEquals(DistractionHistory.CAPACITY * 2, restored.load());
+
+		long[] starts = new long[DistractionHistory.CAPACITY];
+		long[] ends = new long[DistractionHistory.CAPACITY];
+		long[] restoredStarts = new long[DistractionHistory.CAPACITY];
+		long[] restoredEnds = new long[DistractionHistory.CAPACITY];
+		// Only half the cycles fit in the ring
+		assertEquals(DistractionHistory.CAPACITY / 2, history.lastCycles(WORLD, starts.length, starts, ends));
+		assertEquals(DistractionHistory.CAPACITY / 2, restored.lastCycles(WORLD, starts.length, restoredStarts, restoredEnds));
+		assertArrayEquals(starts, restoredStarts);
+		assertArrayEquals(ends, restoredEnds);
+		assertEquals(NOW + (DistractionHistory.CAPACITY - 1) * 1000_000L, starts[0]);
+	}
+
+	/**
+	 * Complete cycles a thousand seconds apart, each distraction lasting 15 seconds.
+	 */
+	private static void cycles(DistractionHistory history, int count)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			long start = NOW + i * 1000_000L;
+			history.record(new CitizenStatus(WORLD, true, start, 0, start, "Alice"));
+			history.record(new CitizenStatus(WORLD, false, 0, start + 15_000, start + 15_000, "Bob"));
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.citizencycle.modules.broadcast;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+
+public class HistorySegmentsTest
+{
+	private static final long NOW = System.currentTimeMillis();
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	// Runs the batched writes only when asked to
+	private final List<Runnable> tasks = new ArrayList<>();
+	private final Executor executor = tasks::add;
+
+	@Test
+	public void unsortedBatchStaysInOneSegment() throws IOException
+	{
+		File directory = folder.newFolder();
+		HistorySegments segments = new HistorySegments(directory, executor);
+		for (int i = 0; i < 20; i++)
+		{
+			// Each world's records in order, but interleaved out of order across worlds
+			segments.append(301 + i % 2, DistractionHistory.START, NOW + (i % 2 == 0 ? i : -i) * 1000L, "Alice");
+			runTasks();
+		}
+		segments.append(303, DistractionHistory.END, NOW - 60_000, "Bob");
+		segments.append(304, DistractionHistory.END, NOW + 60_000, null);
+		runTasks();
+
+		assertEquals(1, directory.list().length);
+		List<String> replayed = replay(segments);
+		assertEquals(22, replayed.size());
+		assertEquals("303 2 " + (NOW - 60_000) + " Bob", replayed.get(20));
+		assertEquals("304 2 " + (NOW + 60_000) + " null", replayed.get(21));
+	}
+
+	@Test
+	public void restartKeepsSegmentWithSameBase() throws IOException
+	{
+		File directory = folder.newFolder();
+		HistorySegments first = new HistorySegments(directory, executor);
+		first.append(301, DistractionHistory.START, NOW, "Alice");
+		runTasks();
+
+		// A new instance starts its own segment at the same time rather than truncating
+		HistorySegments second = new HistorySegments(directory, executor);
+		second.append(302, DistractionHistory.START, NOW, "Bob");
+		runTasks();
+
+		assertEquals(2, directory.list().length);
+		List<String> replayed = replay(second);
+		assertEquals(2, replayed.size());
+		assertEquals("301 1 " + NOW + " Alice", replayed.get(0));
+		assertEquals("302 1 " + NOW + " Bob", replayed.get(1));
+	}
+
+	@Test
+	public void closeWritesQueuedRecords() throws IOException
+	{
+		File directory = folder.newFolder();
+		HistorySegments segments = new HistorySegments(directory, executor);
+		segments.append(301, DistractionHistory.START, NOW, "Alice");
+		segments.close();
+		segments.append(302, DistractionHistory.START, NOW, "Bob");
+		// The flush queued before closing finds nothing left to write
+		runTasks();
+
+		List<String> replayed = replay(new HistorySegments(directory, executor));
+		assertEquals(1, replayed.size());
+		assertEquals("301 1 " + NOW + " Alice", replayed.get(0));
+	}
+
+	private void runTasks()
+	{
+		while (!tasks.isEmpty())
+		{
+			tasks.remove(0).run();
+		}
+	}
+
+	private static List<String> replay(HistorySegments segments)
+	{
+		List<String> records = new ArrayList<>();
+		segments.replay((world, type, time, reporter) -> records.add(world + " " + type + " " + time + " " + reporter));
+		return records;
+	}
+}
@@ -0,0 +1,64 @@
+package com.citizencycle.modules.broadcast;
+
+import com.citizencycle.objects.CitizenSnapshot;
+import com.citizencycle.objects.CitizenStatus;
+import com.citizencycle.objects.WorldStatusTable;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotCacheTest
+{
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	// Never runs the coalesced writes, only close can get them to disk
+	private final List<Runnable> tasks = new ArrayList<>();
+	private final Executor executor = tasks::add;
+
+	@Test
+	public void closeWritesPendingSnapshot() throws IOException
+	{
+		File file = new File(folder.newFolder(), "snapshot.bin");
+		SnapshotCache cache = new SnapshotCache(file, executor);
+		cache.save(snapshot(1, new CitizenStatus(301, true, 1000, 500, 1000, "Alice")));
+		cache.save(snapshot(2, new CitizenStatus(302, false, 0, 2000, 2000, "Bob")));
+		assertEquals(1, tasks.size());
+
+		cache.close();
+		cache.save(snapshot(3, new CitizenStatus(303, false, 0, 3000, 3000, "Carol")));
+
+		Map<Integer, CitizenStatus> loaded = new SnapshotCache(file, executor).load();
+		assertEquals(1, loaded.size());
+		assertEquals(new CitizenStatus(302, false, 0, 2000, 2000, "Bob"), loaded.get(302));
+		assertEquals(1, tasks.size());
+	}
+
+	@Test
+	public void closeWithNothingPendingWritesNothing() throws IOException
+	{
+		File file = new File(folder.newFolder(), "snapshot.bin");
+		new SnapshotCache(file, executor).close();
+
+		assertTrue(new SnapshotCache(file, executor).load().isEmpty());
+		assertFalse(file.exists());
+	}
+
+	private static CitizenSnapshot snapshot(long version, CitizenStatus status)
+	{
+		WorldStatusTable.Builder table = WorldStatusTable.EMPTY.toBuilder(true);
+		table.put(status);
+		return new CitizenSnapshot(version, table.build());
+	}
+}
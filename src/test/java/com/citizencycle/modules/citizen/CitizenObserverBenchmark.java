@@ -0,0 +1,41 @@
+package com.citizencycle.modules.citizen;
+
+/**
+ * Times a game tick of {@link CitizenObserverModule} among a growing crowd of NPCs. Not part
+ * of the test suite, run its main method by hand to compare before and after a change.
+ */
+public class CitizenObserverBenchmark
+{
+	private static final int WARM_UP_TICKS = 5000;
+	private static final int MEASURED_TICKS = 10000;
+	private static final int RUNS = 3;
+
+	public static void main(String[] args)
+	{
+		for (int crowd : new int[]{50, 200, 800, 3200})
+		{
+			System.out.printf("%5d NPCs: %5d ns/tick%n", crowd + 6, measureTick(crowd));
+		}
+	}
+
+	private static long measureTick(int crowd)
+	{
+		FakeScene scene = FakeScene.withCrowd(crowd);
+		for (int i = 0; i < WARM_UP_TICKS; i++)
+		{
+			scene.tick();
+		}
+
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < RUNS; run++)
+		{
+			long start = System.nanoTime();
+			for (int i = 0; i < MEASURED_TICKS; i++)
+			{
+				scene.tick();
+			}
+			best = Math.min(best, (System.nanoTime() - start) / MEASURED_TICKS);
+		}
+		return best;
+	}
+}
@@ -0,0 +1,169 @@
+package com.citizencycle.modules.citizen;
+
+import com.citizencycle.events.CitizenStatusChanged;
+import com.citizencycle.objects.CitizenStatus;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CitizenObserverModuleTest
+{
+	private static final int WARM_UP_TICKS = 5000;
+
+	/**
+	 * The same four citizens among a growing crowd. The observer only looks at indexed
+	 * citizens, so it makes the same calls however many NPCs are loaded and never walks
+	 * the scene's NPC list.
+	 */
+	@Test
+	public void tickWorkDoesNotGrowWithNpcCount()
+	{
+		int[] crowds = {50, 3200};
+		int[] calls = new int[crowds.length];
+		for (int i = 0; i < crowds.length; i++)
+		{
+			FakeScene scene = FakeScene.withCrowd(crowds[i]);
+			// Entering the city seeds the index from the loaded NPCs once
+			ticks(scene, 5);
+			scene.npcCalls = 0;
+			scene.npcScans = 0;
+
+			// Standing still, including a few consistency checks, then walking
+			ticks(scene, CitizenObserverModule.CONSISTENCY_CHECK_TICKS * 5);
+			scene.moving = true;
+			for (int j = 0; j < 5; j++)
+			{
+				scene.movePlayer(1, 0);
+				scene.tick();
+			}
+
+			calls[i] = scene.npcCalls;
+			assertEquals(0, scene.npcScans);
+		}
+		assertTrue(calls[0] > 0);
+		assertEquals(calls[0], calls[1]);
+	}
+
+	/**
+	 * A player standing still among citizens: only the periodic position check may allocate,
+	 * every tick between them has to run without creating garbage.
+	 */
+	@Test
+	public void idleTicksDoNotAllocate()
+	{
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		FakeScene scene = FakeScene.withCrowd(200);
+
+		// Walk in, stop, and let everything warm up
+		scene.moving = true;
+		for (int i = 0; i < 5; i++)
+		{
+			scene.movePlayer(1, 0);
+			scene.tick();
+		}
+		scene.moving = false;
+		ticks(scene, WARM_UP_TICKS);
+
+		// What reading the counter costs on its own
+		long overhead = Long.MAX_VALUE;
+		for (int i = 0; i < 100; i++)
+		{
+			long before = threads.getThreadAllocatedBytes(thread);
+			overhead = Math.min(overhead, threads.getThreadAllocatedBytes(thread) - before);
+		}
+
+		int ticks = 1000;
+		long[] allocated = new long[ticks];
+		for (int i = 0; i < ticks; i++)
+		{
+			long before = threads.getThreadAllocatedBytes(thread);
+			scene.tick();
+			allocated[i] = threads.getThreadAllocatedBytes(thread) - before - overhead;
+		}
+
+		int allocating = 0;
+		int last = -CitizenObserverModule.CONSISTENCY_CHECK_TICKS;
+		for (int i = 0; i < ticks; i++)
+		{
+			if (allocated[i] > 0)
+			{
+				assertTrue("tick " + i + " allocated again after " + (i - last), i - last >= CitizenObserverModule.CONSISTENCY_CHECK_TICKS);
+				allocating++;
+				last = i;
+			}
+		}
+		assertTrue(allocating + " allocating ticks", allocating <= ticks / CitizenObserverModule.CONSISTENCY_CHECK_TICKS + 1);
+
+		// Walking reads the position every tick again
+		scene.moving = true;
+		scene.movePlayer(1, 0);
+		long before = threads.getThreadAllocatedBytes(thread);
+		scene.tick();
+		assertTrue(threads.getThreadAllocatedBytes(thread) - before - overhead > 0);
+		assertEquals(true, scene.module.isInThievingArea());
+	}
+
+	@Test
+	public void despawnEndsDistractionAfterItsStart()
+	{
+		FakeScene scene = new FakeScene();
+		FakeScene.FakeNpc early = scene.spawnCitizen(2, 0);
+		FakeScene.FakeNpc late = scene.spawnCitizen(-2, 0);
+		FakeScene.FakeNpc child = scene.spawn(2000, 0, "Child", 1, 1);
+		scene.tick();
+
+		// A short distraction of one citizen that ends long before the next one
+		scene.interact(early, child);
+		ticks(scene, 3);
+		scene.interact(early, null);
+		ticks(scene, 10);
+
+		scene.interact(late, child);
+		ticks(scene, 3);
+		assertTrue(scene.module.isCitizenDistracted());
+
+		ticks(scene, 20);
+		scene.despawn(late);
+		// Still waiting for the end to hold for the confirm ticks
+		assertTrue(scene.module.isCitizenDistracted());
+		ticks(scene, 2);
+		assertFalse(scene.module.isCitizenDistracted());
+
+		List<CitizenStatus> changes = statusChanges(scene);
+		CitizenStatus start = changes.get(changes.size() - 2);
+		CitizenStatus end = changes.get(changes.size() - 1);
+		assertTrue(start.isDistracted());
+		assertFalse(end.isDistracted());
+		// Ticks pass instantly here, so only the order of the backdated times can be checked
+		assertTrue(end.getDistractionEndTime() >= start.getDistractionStartTime());
+	}
+
+	private static void ticks(FakeScene scene, int count)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			scene.tick();
+		}
+	}
+
+	private static List<CitizenStatus> statusChanges(FakeScene scene)
+	{
+		List<CitizenStatus> changes = new ArrayList<>();
+		for (Object event : scene.events)
+		{
+			if (event instanceof CitizenStatusChanged)
+			{
+				changes.add(((CitizenStatusChanged) event).getStatus());
+			}
+		}
+		return changes;
+	}
+}
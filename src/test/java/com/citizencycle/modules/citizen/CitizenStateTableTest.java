@@ -0,0 +1,89 @@
+package com.citizencycle.modules.citizen;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CitizenStateTableTest
+{
+	private final CitizenStateTable table = new CitizenStateTable();
+
+	@Test
+	public void tracksEarliestStartAndLatestEnd()
+	{
+		assertTrue(table.update(1, true, 10));
+		assertTrue(table.update(2, true, 12));
+		assertFalse(table.update(1, true, 13));
+
+		assertEquals(2, table.getDistractedCount());
+		assertEquals(1, table.earliestDistracted());
+		assertEquals(10, table.getStartTick(1));
+
+		assertTrue(table.update(1, false, 20));
+		assertTrue(table.update(2, false, 18));
+		assertEquals(0, table.getDistractedCount());
+		assertEquals(20, table.getEndTick(1));
+		assertEquals(18, table.getEndTick(2));
+		assertEquals(20, table.latestEndTick());
+	}
+
+	@Test
+	public void latestEndOnlyCountsIdleCitizens()
+	{
+		table.update(1, true, 2);
+		table.update(1, false, 6);
+		table.update(2, true, 3);
+		table.update(2, false, 9);
+
+		// Distracted again, its old end no longer says when the world became calm
+		table.update(2, true, 12);
+		assertEquals(CitizenStateTable.NONE, table.getEndTick(2));
+		assertEquals(6, table.latestEndTick());
+
+		table.update(2, false, 15);
+		assertEquals(15, table.latestEndTick());
+
+		table.clear();
+		assertEquals(CitizenStateTable.NONE, table.latestEndTick());
+	}
+
+	@Test
+	public void removingADistractedCitizenKeepsItsEnd()
+	{
+		// An earlier distraction of another citizen, long over
+		table.update(1, true, 2);
+		table.update(1, false, 4);
+
+		table.update(2, true, 10);
+		assertTrue(table.remove(2, 30));
+
+		assertEquals(0, table.getDistractedCount());
+		assertEquals(30, table.latestEndTick());
+		assertEquals(CitizenStateTable.NONE, table.getStartTick(2));
+	}
+
+	@Test
+	public void removingAnIdleCitizenEndsNothing()
+	{
+		table.update(1, true, 2);
+		table.update(1, false, 4);
+
+		assertFalse(table.remove(1, 9));
+		assertFalse(table.remove(5, 9));
+		assertEquals(4, table.latestEndTick());
+	}
+
+	@Test
+	public void reportedOnlyCoversCurrentDistractions()
+	{
+		table.update(1, true, 2);
+		table.markReported();
+		assertTrue(table.isReported());
+
+		table.update(1, false, 5);
+		table.update(1, true, 8);
+		assertFalse(table.isReported());
+	}
+}
@@ -0,0 +1,321 @@
+package com.citizencycle.modules.citizen;
+
+import com.citizencycle.CitizenCycleConfig;
+import com.citizencycle.PluginModuleContract;
+import com.citizencycle.services.ServerClock;
+import net.runelite.api.Actor;
+import net.runelite.api.Client;
+import net.runelite.api.GameState;
+import net.runelite.api.IndexedObjectSet;
+import net.runelite.api.NPC;
+import net.runelite.api.Player;
+import net.runelite.api.WorldView;
+import net.runelite.api.coords.WorldPoint;
+import net.runelite.api.events.GameTick;
+import net.runelite.api.events.InteractingChanged;
+import net.runelite.api.events.NpcDespawned;
+import net.runelite.api.events.NpcSpawned;
+import net.runelite.client.eventbus.EventBus;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A player standing among NPCs in Civitas illa Fortis, with a {@link CitizenObserverModule}
+ * wired to it. The client interfaces are plain proxies; every boxed value they return is
+ * created up front so driving the module does not allocate on the test's behalf.
+ */
+class FakeScene
+{
+	static final int CITIZEN_ID = 13302;
+	private static final int CITY_X = 1700;
+	private static final int CITY_Y = 3100;
+	private static final int MAX_TICKS = 1 << 16;
+
+	static final class FakeNpc
+	{
+		final int id;
+		final Integer boxedId;
+		final Integer index;
+		final Integer combatLevel;
+		final String name;
+		int x;
+		int y;
+		Actor interacting;
+		NPC npc;
+
+		FakeNpc(int id, int index, int combatLevel, String name, int x, int y)
+		{
+			this.id = id;
+			this.boxedId = id;
+			this.index = index;
+			this.combatLevel = combatLevel;
+			this.name = name;
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	private static final Integer BASE_X = CITY_X - 52;
+	private static final Integer BASE_Y = CITY_Y - 52;
+	private static final Integer SIZE = 104;
+	private static final Integer ZERO = 0;
+	private static final Integer WALKING = 819;
+	private static final Integer IDLE = 808;
+
+	final CitizenObserverModule module = new CitizenObserverModule();
+	final List<NPC> npcs = new ArrayList<>();
+	// Everything the module dispatched
+	final List<Object> events = new ArrayList<>();
+	// Calls the module made on any NPC, and walks over the scene's NPC list
+	int npcCalls = 0;
+	int npcScans = 0;
+	final Client client;
+	final Player player;
+	final WorldView worldView;
+	private final GameTick gameTick = new GameTick();
+	private final Integer[] ticks = new Integer[MAX_TICKS];
+	private int tick = 0;
+	private int playerX = CITY_X;
+	private int playerY = CITY_Y;
+	boolean moving = false;
+
+	FakeScene()
+	{
+		for (int i = 0; i < MAX_TICKS; i++)
+		{
+			ticks[i] = i;
+		}
+
+		IndexedObjectSet<?> npcSet = proxy(IndexedObjectSet.class, name ->
+		{
+			if (!name.equals("iterator"))
+			{
+				return null;
+			}
+			npcScans++;
+			return npcs.iterator();
+		});
+		worldView = proxy(WorldView.class, name ->
+		{
+			switch (name)
+			{
+				case "getBaseX":
+					return BASE_X;
+				case "getBaseY":
+					return BASE_Y;
+				case "getSizeX":
+				case "getSizeY":
+					return SIZE;
+				case "getPlane":
+					return ZERO;
+				case "npcs":
+					return npcSet;
+				default:
+					return null;
+			}
+		});
+		player = proxy(Player.class, name ->
+		{
+			switch (name)
+			{
+				case "getWorldView":
+					return worldView;
+				case "getWorldLocation":
+					return new WorldPoint(playerX, playerY, 0);
+				case "getName":
+					return "Tester";
+				case "getPoseAnimation":
+					return moving ? WALKING : IDLE;
+				case "getIdlePoseAnimation":
+					return IDLE;
+				default:
+					return null;
+			}
+		});
+		client = proxy(Client.class, name ->
+		{
+			switch (name)
+			{
+				case "getGameState":
+					return GameState.LOGGED_IN;
+				case "getTickCount":
+					return ticks[tick];
+				case "getLocalPlayer":
+					return player;
+				case "getWorld":
+					return 330;
+				case "getTopLevelWorldView":
+					return worldView;
+				default:
+					return null;
+			}
+		});
+		CitizenCycleConfig config = proxy(CitizenCycleConfig.class, name ->
+		{
+			switch (name)
+			{
+				case "confirmTicks":
+					return 2;
+				case "autoBroadcast":
+				case "notifyOnDistraction":
+				case "notifyOnDistractionEnd":
+					return false;
+				default:
+					return null;
+			}
+		});
+
+		inject(CitizenObserverModule.class, "client", client);
+		inject(CitizenObserverModule.class, "config", config);
+		inject(CitizenObserverModule.class, "serverClock", new ServerClock());
+		inject(PluginModuleContract.class, "eventBus", new EventBus()
+		{
+			@Override
+			public void post(Object event)
+			{
+				events.add(event);
+			}
+		});
+		module.startUp();
+	}
+
+	/**
+	 * Four citizens and two children among {@code crowd} bystanders.
+	 */
+	static FakeScene withCrowd(int crowd)
+	{
+		FakeScene scene = new FakeScene();
+		scene.spawnCrowd(crowd);
+		for (int i = 0; i < 4; i++)
+		{
+			scene.spawnCitizen(i * 3 - 5, 2);
+		}
+		scene.spawn(2000, 0, "Child", 1, 1);
+		scene.spawn(2001, 0, "Child", -1, 1);
+		return scene;
+	}
+
+	/**
+	 * Adds an NPC next to the player and announces its spawn.
+	 */
+	FakeNpc spawn(int id, int combatLevel, String name, int dx, int dy)
+	{
+		FakeNpc fake = new FakeNpc(id, npcs.size(), combatLevel, name, playerX + dx, playerY + dy);
+		fake.npc = proxy(NPC.class, method ->
+		{
+			npcCalls++;
+			switch (method)
+			{
+				case "getId":
+					return fake.boxedId;
+				case "getIndex":
+					return fake.index;
+				case "getCombatLevel":
+					return fake.combatLevel;
+				case "getName":
+					return fake.name;
+				case "getWorldLocation":
+					return new WorldPoint(fake.x, fake.y, 0);
+				case "getWorldView":
+					return worldView;
+				case "isInteracting":
+					return fake.interacting != null;
+				case "getInteracting":
+					return fake.interacting;
+				default:
+					return null;
+			}
+		});
+		npcs.add(fake.npc);
+		module.onNpcSpawned(new NpcSpawned(fake.npc));
+		return fake;
+	}
+
+	FakeNpc spawnCitizen(int dx, int dy)
+	{
+		return spawn(CITIZEN_ID, 0, "Wealthy citizen", dx, dy);
+	}
+
+	/**
+	 * Bystanders that are neither citizens nor children.
+	 */
+	void spawnCrowd(int count)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			spawn(1000 + i, 2 + i % 90, "Citizen", i % 40 - 20, i / 40 % 40 - 20);
+		}
+	}
+
+	void despawn(FakeNpc fake)
+	{
+		npcs.remove(fake.npc);
+		module.onNpcDespawned(new NpcDespawned(fake.npc));
+	}
+
+	/**
+	 * Starts or, with a null target, stops an NPC interacting and announces it.
+	 */
+	void interact(FakeNpc source, FakeNpc target)
+	{
+		source.interacting = target == null ? null : target.npc;
+		module.onInteractingChanged(new InteractingChanged(source.npc, source.interacting));
+	}
+
+	void movePlayer(int dx, int dy)
+	{
+		playerX += dx;
+		playerY += dy;
+	}
+
+	int currentTick()
+	{
+		return tick;
+	}
+
+	/**
+	 * Advances the game by one tick.
+	 */
+	void tick()
+	{
+		tick++;
+		module.onGameTick(gameTick);
+	}
+
+	private void inject(Class<?> owner, String field, Object value)
+	{
+		try
+		{
+			Field declared = owner.getDeclaredField(field);
+			declared.setAccessible(true);
+			declared.set(module, value);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			throw new AssertionError(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> type, Function<String, Object> values)
+	{
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) ->
+		{
+			switch (method.getName())
+			{
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "toString":
+					return type.getSimpleName();
+				default:
+					return values.apply(method.getName());
+			}
+		});
+	}
+}
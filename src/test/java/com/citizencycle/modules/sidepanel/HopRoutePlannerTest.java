@@ -0,0 +1,63 @@
+package com.citizencycle.modules.sidepanel;
+
+import com.citizencycle.objects.CitizenStatus;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HopRoutePlannerTest
+{
+	private static final long NOW = 1_700_000_000_000L;
+	private static final long GAP = CitizenStatus.DISTRACTION_CYCLE_SECONDS * 1000L;
+	private static final int CURRENT_WORLD = 420;
+
+	// One distraction underway and one about to start, close enough for a fast hopper to
+	// leave the second world sooner than the cooldown allows
+	private final List<HopPriorityIndex.Entry> entries = Arrays.asList(
+		new HopPriorityIndex.Entry(new CitizenStatus(301, true, NOW - 8000, 0, NOW, "Alice"),
+			0, HopPriorityIndex.Category.DISTRACTED, NOW - 8000, Long.MAX_VALUE),
+		new HopPriorityIndex.Entry(new CitizenStatus(302, false, 0, NOW + 9000 - GAP, NOW, "Bob"),
+			0, HopPriorityIndex.Category.HOP_NOW, NOW + 9000, Long.MAX_VALUE));
+
+	@Test
+	public void hopsAreKeptCooldownApart()
+	{
+		HopRoutePlanner planner = new HopRoutePlanner();
+		planner.setHopMillis(1000);
+
+		List<HopRoutePlanner.Step> route = planner.plan(entries, world -> true, CURRENT_WORLD, NOW);
+
+		assertTrue(route.size() >= 2);
+		assertEquals(301, route.get(0).getWorld());
+		assertEquals(NOW, route.get(0).getDepartAt());
+		for (int i = 1; i < route.size(); i++)
+		{
+			HopRoutePlanner.Step previous = route.get(i - 1);
+			HopRoutePlanner.Step step = route.get(i);
+			if (step.getWorld() != previous.getWorld())
+			{
+				long apart = step.getDepartAt() - previous.getDepartAt();
+				assertTrue("hops " + apart + "ms apart", apart >= HopRoutePlanner.DEFAULT_HOP_COOLDOWN_MS);
+			}
+			assertTrue(step.getCatchAt() >= step.getDepartAt() + 1000);
+		}
+	}
+
+	@Test
+	public void withoutCooldownHopsFollowEachOther()
+	{
+		HopRoutePlanner planner = new HopRoutePlanner();
+		planner.setHopMillis(1000);
+		planner.setHopCooldownMillis(0);
+
+		List<HopRoutePlanner.Step> route = planner.plan(entries, world -> true, CURRENT_WORLD, NOW);
+
+		// Leaves for the second world as soon as it is time, 8s after the first hop
+		assertEquals(302, route.get(1).getWorld());
+		assertEquals(NOW + 8000, route.get(1).getDepartAt());
+	}
+}
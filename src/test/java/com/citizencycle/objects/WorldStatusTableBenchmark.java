@@ -0,0 +1,62 @@
+package com.citizencycle.objects;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Scan cost and heap size of {@link WorldStatusTable} against the map of status objects it
+ * replaced. Not part of the test suite, run its main method by hand to compare before and
+ * after a change.
+ */
+public class WorldStatusTableBenchmark
+{
+	private static final long NOW = 1_700_000_000_000L;
+	private static final int WORLDS = 250;
+	private static final int RUNS = 2000;
+
+	public static void main(String[] args)
+	{
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		long before = threads.getThreadAllocatedBytes(thread);
+		Map<Integer, CitizenStatus> map = new ConcurrentHashMap<>();
+		for (int i = 0; i < WORLDS; i++)
+		{
+			map.put(301 + i, WorldStatusTableTest.status(301 + i, "Reporter " + i % 20));
+		}
+		long mapBytes = threads.getThreadAllocatedBytes(thread) - before;
+
+		WorldStatusTable.Builder builder = WorldStatusTable.EMPTY.toBuilder(true);
+		for (CitizenStatus status : map.values())
+		{
+			builder.put(status);
+		}
+		WorldStatusTable table = builder.build();
+
+		int[] out = new int[WORLDS];
+		long mapNanos = Long.MAX_VALUE;
+		long tableNanos = Long.MAX_VALUE;
+		for (int run = 0; run < RUNS; run++)
+		{
+			long start = System.nanoTime();
+			int found = 0;
+			for (CitizenStatus status : map.values())
+			{
+				if (status.isDistracted() && !status.isStale(NOW))
+				{
+					out[found++] = status.getWorld();
+				}
+			}
+			mapNanos = Math.min(mapNanos, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			table.distractedWorlds(NOW, out);
+			tableNanos = Math.min(tableNanos, System.nanoTime() - start);
+		}
+
+		System.out.printf("%d worlds: map %d bytes, scan %dns; table %d bytes, scan %dns%n",
+			WORLDS, mapBytes, mapNanos, table.footprintBytes(), tableNanos);
+	}
+}
@@ -0,0 +1,116 @@
+package com.citizencycle.objects;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WorldStatusTableTest
+{
+	private static final long NOW = 1_700_000_000_000L;
+	private static final int WORLDS = 250;
+
+	@Test
+	public void reporterPoolStaysBoundedUnderChurn()
+	{
+		WorldStatusTable table = WorldStatusTable.EMPTY;
+		WorldStatusTable first = null;
+		for (int round = 0; round < 100; round++)
+		{
+			WorldStatusTable.Builder builder = table.toBuilder(false);
+			for (int i = 0; i < 50; i++)
+			{
+				builder.put(status(301 + i, "Reporter " + round + "-" + i));
+			}
+			table = builder.build();
+			if (first == null)
+			{
+				first = table;
+			}
+		}
+
+		assertEquals(50, table.size());
+		assertTrue(table.reporterCount() + " names", table.reporterCount() <= table.size() + 64);
+		assertEquals("Reporter 99-7", table.get(308).getReportedBy());
+		// Tables built before a compaction still resolve their own names
+		assertEquals("Reporter 0-7", first.get(308).getReportedBy());
+	}
+
+	@Test
+	public void clearStartsFreshPool()
+	{
+		WorldStatusTable.Builder builder = WorldStatusTable.EMPTY.toBuilder(false);
+		for (int i = 0; i < 40; i++)
+		{
+			builder.put(status(301 + i, "Reporter " + i));
+		}
+		WorldStatusTable before = builder.build();
+
+		builder = before.toBuilder(true);
+		builder.put(status(301, "Alice"));
+		WorldStatusTable after = builder.build();
+
+		assertEquals(1, after.reporterCount());
+		assertEquals("Alice", after.get(301).getReportedBy());
+		assertNull(after.get(302));
+		assertEquals("Reporter 1", before.get(302).getReportedBy());
+	}
+
+	/**
+	 * The scan gives the same worlds as checking each status on its own, before and after
+	 * some of them go stale.
+	 */
+	@Test
+	public void distractedWorldsMatchStatusScan()
+	{
+		List<CitizenStatus> statuses = new ArrayList<>();
+		WorldStatusTable.Builder builder = WorldStatusTable.EMPTY.toBuilder(true);
+		for (int i = 0; i < WORLDS; i++)
+		{
+			CitizenStatus status = status(301 + i, "Reporter " + i % 20);
+			if (i % 4 == 0)
+			{
+				// Last heard of a while ago, goes stale first
+				status = new CitizenStatus(status.getWorld(), status.isDistracted(), status.getDistractionStartTime(),
+					status.getDistractionEndTime(), NOW - 150_000, status.getReportedBy());
+			}
+			statuses.add(status);
+			builder.put(status);
+		}
+		WorldStatusTable table = builder.build();
+
+		for (long now : new long[]{NOW, NOW + 30_000, NOW + 200_000})
+		{
+			List<Integer> expected = new ArrayList<>();
+			for (CitizenStatus status : statuses)
+			{
+				if (status.isDistracted() && !status.isStale(now))
+				{
+					expected.add(status.getWorld());
+				}
+			}
+
+			int[] out = new int[WORLDS];
+			int found = table.distractedWorlds(now, out);
+			List<Integer> actual = new ArrayList<>();
+			for (int i = 0; i < found; i++)
+			{
+				actual.add(out[i]);
+			}
+			assertEquals(expected, actual);
+			// A short or missing array still gets the full count
+			assertEquals(found, table.distractedWorlds(now, new int[1]));
+			assertEquals(found, table.distractedWorlds(now, null));
+		}
+	}
+
+		static CitizenStatus status(int world, String reporter)
+	{
+		boolean distracted = world % 3 == 0;
+		return new CitizenStatus(world, distracted, distracted ? NOW - 5000 : 0, NOW - 20000 - world, NOW - 1000, reporter);
+	}
+}
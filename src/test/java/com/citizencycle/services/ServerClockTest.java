@@ -0,0 +1,59 @@
+package com.citizencycle.services;
+
+import okhttp3.HttpUrl;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ServerClockTest
+{
+	private final ServerClock clock = new ServerClock();
+	private final Endpoint ahead = new Endpoint(HttpUrl.parse("https://ahead.example/api/citizens"));
+	private final Endpoint behind = new Endpoint(HttpUrl.parse("https://behind.example/api/citizens"));
+
+	@Test
+	public void eachEndpointKeepsItsOwnOffset()
+	{
+		assertTrue(ahead.recordClockSample(4000));
+		assertFalse(ahead.recordClockSample(8000));
+		behind.recordClockSample(-2000);
+
+		assertEquals(5000, ahead.getClockOffsetMillis());
+		assertEquals(-2000, behind.getClockOffsetMillis());
+	}
+
+	@Test
+	public void readsTheClockOfTheEndpointItFollows()
+	{
+		ahead.recordClockSample(4000);
+		behind.recordClockSample(-2000);
+		assertFalse(clock.isSynced());
+		assertEquals(0, clock.getOffsetMillis());
+
+		clock.follow(ahead);
+		assertTrue(clock.isSynced());
+		assertEquals(4000, clock.getOffsetMillis());
+
+		clock.follow(behind);
+		assertEquals(-2000, clock.getOffsetMillis());
+		clock.follow(null);
+		assertEquals(-2000, clock.getOffsetMillis());
+	}
+
+	@Test
+	public void translatesTimesOntoAnotherEndpointsClock()
+	{
+		ahead.recordClockSample(4000);
+		clock.follow(ahead);
+		long time = 1_700_000_000_000L;
+
+		// Nothing known about the other clock yet
+		assertEquals(time, clock.translate(time, behind));
+
+		behind.recordClockSample(-2000);
+		assertEquals(time - 6000, clock.translate(time, behind));
+		assertEquals(time, clock.translate(time, ahead));
+	}
+}